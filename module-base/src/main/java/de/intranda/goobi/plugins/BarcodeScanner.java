@@ -1,11 +1,19 @@
 package de.intranda.goobi.plugins;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Pattern;
 
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
 import org.goobi.api.mq.QueueType;
 import org.goobi.api.mq.TaskTicket;
 import org.goobi.api.mq.TicketGenerator;
+import org.goobi.api.mq.ticket.BarcodeConfiguration;
+import org.goobi.api.mq.ticket.BarcodeTicket;
+import org.goobi.api.mq.ticket.DecodeResultCache;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.PluginGuiType;
 import org.goobi.production.enums.PluginReturnValue;
@@ -13,6 +21,10 @@ import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
 import jakarta.jms.JMSException;
 import lombok.Data;
 import lombok.extern.log4j.Log4j;
@@ -36,19 +48,83 @@ public class BarcodeScanner implements IStepPluginVersion2 {
     /* (non-Javadoc)
      * @see org.goobi.production.plugin.interfaces.IStepPluginVersion2#run()
      * Creates Ticket for Barcode Scanner and adds it to queue
+     * If sharding is configured and the process contains more images than fit into one shard, one ticket per image range is created instead. The
+     * shard tickets can be processed by different workers, the last one submits a ticket which writes the metadata and closes the step.
+     * If queue routing is configured, small processes are submitted to the fast queue, so they don't wait behind large ones. The size is estimated
+     * from the number and size of the images, images with barcodes from the last run are not counted.
      */
     @Override
     public PluginReturnValue run() {
 
-        TaskTicket exportTicket = TicketGenerator.generateSimpleTicket("BarcodeScanner");
-        exportTicket.setProcessId(step.getProzess().getId());
-        exportTicket.setProcessName(step.getProzess().getTitel());
-
-        exportTicket.setStepId(step.getId());
-        exportTicket.setStepName(step.getTitel());
+        int imageCount = 0;
+        long imageBytes = 0;
+        boolean imagesListed = false;
+        XMLConfiguration config = ConfigPlugins.getPluginConfig(title);
+        config.setExpressionEngine(new XPathExpressionEngine());
+        // the pages of multipage files are only known to the ticket, so the image ranges of shards cannot be computed here
+        int shardSize = config.getBoolean("/multipageFiles", false) ? 0 : config.getInt("/shardSize", 0);
+        int fastQueueMaxImages = config.getInt("/queueRouting/fastQueueMaxImages", 0);
+        long fastQueueMaxBytes = config.getLong("/queueRouting/fastQueueMaxMegabytes", 0) * 1024 * 1024;
+        // each limit can be used on its own
+        boolean queueRouting = fastQueueMaxImages > 0 || fastQueueMaxBytes > 0;
+        if (shardSize > 0 || queueRouting) {
+            try {
+                String folder = step.getProzess().getImagesOrigDirectory(false);
+                List<String> imageNames = StorageProvider.getInstance().list(folder);
+                imageCount = imageNames.size();
+                if (queueRouting) {
+                    for (String imageName : imageNames) {
+                        imageBytes += StorageProvider.getInstance().getFileSize(Paths.get(folder, imageName));
+                    }
+                }
+                imagesListed = true;
+            } catch (IOException | SwapException | DAOException e) {
+                log.error(e);
+            }
+        }
 
         try {
-            TicketGenerator.submitInternalTicket(exportTicket, QueueType.SLOW_QUEUE, "BarcodeScanner", step.getProcessId());
+            if (shardSize > 0 && imageCount > shardSize) {
+                // results of an earlier run which did not finish would be taken for results of this one
+                try {
+                    BarcodeTicket.deleteShardFiles(step.getProzess().getProcessDataDirectory());
+                } catch (IOException | SwapException e) {
+                    log.error(e);
+                    return PluginReturnValue.ERROR;
+                }
+                int shardCount = (imageCount + shardSize - 1) / shardSize;
+                for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                    TaskTicket shardTicket = createTicket();
+                    shardTicket.getProperties().put(BarcodeTicket.PROPERTY_MODE, BarcodeTicket.MODE_SHARD);
+                    shardTicket.getProperties().put(BarcodeTicket.PROPERTY_SHARD_INDEX, String.valueOf(shardIndex));
+                    shardTicket.getProperties().put(BarcodeTicket.PROPERTY_SHARD_COUNT, String.valueOf(shardCount));
+                    shardTicket.getProperties().put(BarcodeTicket.PROPERTY_FIRST_IMAGE, String.valueOf(shardIndex * shardSize));
+                    shardTicket.getProperties()
+                            .put(BarcodeTicket.PROPERTY_LAST_IMAGE, String.valueOf(Math.min(imageCount, (shardIndex + 1) * shardSize)));
+                    TicketGenerator.submitInternalTicket(shardTicket, QueueType.SLOW_QUEUE, "BarcodeScanner", step.getProcessId());
+                }
+            } else {
+                TaskTicket ticket = createTicket();
+                QueueType queue = QueueType.SLOW_QUEUE;
+                // without the number of images the process might be large, so it stays in the slow queue
+                if (queueRouting && imagesListed) {
+                    // images with known barcodes are not decoded again, they only cost the creation of their page
+                    int cachedImages = config.getBoolean("/decodeCache", false) || config.getBoolean("/incremental", false)
+                            ? Math.min(imageCount, countCachedImages()) : 0;
+                    int estimatedImages = imageCount - cachedImages;
+                    long estimatedBytes = imageCount == 0 ? 0 : imageBytes * estimatedImages / imageCount;
+                    ticket.getProperties().put(BarcodeTicket.PROPERTY_ESTIMATED_IMAGES, String.valueOf(estimatedImages));
+                    ticket.getProperties().put(BarcodeTicket.PROPERTY_ESTIMATED_BYTES, String.valueOf(estimatedBytes));
+                    if ((fastQueueMaxImages <= 0 || estimatedImages <= fastQueueMaxImages)
+                            && (fastQueueMaxBytes <= 0 || estimatedBytes <= fastQueueMaxBytes)) {
+                        queue = QueueType.FAST_QUEUE;
+                    }
+                    log.debug(step.getProzess().getTitel() + ": " + estimatedImages + " of " + imageCount + " images to decode, " + estimatedBytes
+                            + " bytes, using " + queue);
+                }
+                ticket.getProperties().put(BarcodeTicket.PROPERTY_QUEUE, queue.name());
+                TicketGenerator.submitInternalTicket(ticket, queue, "BarcodeScanner", step.getProcessId());
+            }
         } catch (JMSException e) {
             return PluginReturnValue.ERROR;
         }
@@ -57,6 +133,32 @@ public class BarcodeScanner implements IStepPluginVersion2 {
 
     }
 
+    /**
+     * Returns the number of images in the barcode cache of the process, which were decoded with the current settings. Only the header of the file
+     * is read, so images which were changed since the last run are counted as well.
+     *
+     * @return
+     */
+    private int countCachedImages() {
+        try {
+            return DecodeResultCache.countEntries(Paths.get(step.getProzess().getProcessDataDirectory(), DecodeResultCache.CACHE_FILE_NAME),
+                    BarcodeConfiguration.getInstance(title).getAllDecodeSettings());
+        } catch (IOException | SwapException e) {
+            log.debug("Unable to read barcode cache of process " + step.getProzess().getTitel(), e);
+            return 0;
+        }
+    }
+
+    private TaskTicket createTicket() {
+        TaskTicket exportTicket = TicketGenerator.generateSimpleTicket("BarcodeScanner");
+        exportTicket.setProcessId(step.getProzess().getId());
+        exportTicket.setProcessName(step.getProzess().getTitel());
+
+        exportTicket.setStepId(step.getId());
+        exportTicket.setStepName(step.getTitel());
+        return exportTicket;
+    }
+
     @Override
     public String cancel() {
         return null;
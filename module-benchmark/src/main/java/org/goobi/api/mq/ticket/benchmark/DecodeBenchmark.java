@@ -0,0 +1,170 @@
+package org.goobi.api.mq.ticket.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.api.mq.ticket.BarcodeDecoder;
+import org.goobi.api.mq.ticket.DecodeContext;
+import org.goobi.api.mq.ticket.DecodeContext.Slot;
+import org.goobi.api.mq.ticket.DecodeStrategy;
+import org.goobi.api.mq.ticket.PageImageLoader;
+import org.goobi.api.mq.ticket.PageImageLoader.StreamOpener;
+import org.goobi.api.mq.ticket.ScanRegion;
+import org.goobi.api.mq.ticket.benchmark.SyntheticCorpus.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.Result;
+
+/**
+ * Measures the time to detect the barcodes of a single page. The page is generated once per trial, the parameters select resolution, file format,
+ * barcode type and position as well as the decoder settings.
+ *
+ * The defaults only cover a representative set of 32 combinations: every page type at 300 dpi as TIFF, with the full and the row band engine
+ * chain, with and without subsampling and with both strategies. The values of the full grid are listed next to each parameter, they can be
+ * selected with e.g. <code>java -jar barcode-scanner-benchmarks.jar DecodeBenchmark -p dpi=150,300,600 -p format=tif,png,jpg</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    /**
+     * full grid: 150, 300, 600
+     */
+    @Param({ "300" })
+    private int dpi;
+
+    /**
+     * full grid: tif, png, jpg
+     */
+    @Param({ "tif" })
+    private String format;
+
+    /**
+     * barcode format and position on the page, blank for a page without barcode
+     */
+    @Param({ "EAN_13:TOP", "QR_CODE:CORNER", "CODE_128:CENTER", "blank" })
+    private String page;
+
+    /**
+     * decoder engines, several engines separated by + are tried in this order, as JMH splits parameter values at commas; full grid: multi, qr,
+     * ean13, rows1d, rows1d+qr
+     */
+    @Param({ "multi", "rows1d+qr" })
+    private String reader;
+
+    /**
+     * multiple barcodes per page, uses the GenericMultipleBarcodeReader without TRY_HARDER; full grid: false, true
+     */
+    @Param({ "false" })
+    private boolean multipleBarcodes;
+
+    /**
+     * subsampling factors separated by colons, in the order they are tried
+     */
+    @Param({ "1", "4:2:1" })
+    private String subsampling;
+
+    /**
+     * scan regions searched before the whole page; full grid: none, top+corner
+     */
+    @Param({ "none" })
+    private String regions;
+
+    /**
+     * legacy decodes with fixed effort, adaptive runs the fast pass first and escalates on pages with bars, restricted to the barcode format
+     */
+    @Param({ "legacy", "adaptive" })
+    private String strategy;
+
+    private Path folder;
+    private Path file;
+    private StreamOpener opener;
+    private BarcodeDecoder decoder;
+    private final DecodeContext context = new DecodeContext();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = SyntheticCorpus.createFolder();
+        BarcodeFormat barcodeFormat = null;
+        Position position = Position.CENTER;
+        if (!"blank".equals(page)) {
+            String[] parts = page.split(":");
+            barcodeFormat = BarcodeFormat.valueOf(parts[0]);
+            position = Position.valueOf(parts[1]);
+        }
+        file = SyntheticCorpus.writePage(folder, dpi, format, barcodeFormat, position);
+        opener = () -> Files.newInputStream(file);
+
+        List<Integer> steps = new ArrayList<>();
+        for (String step : subsampling.split(":")) {
+            steps.add(Integer.valueOf(step.trim()));
+        }
+        List<ScanRegion> scanRegions = new ArrayList<>();
+        if (regions.contains("top")) {
+            scanRegions.add(new ScanRegion(0, 0, 1, 0.2, null));
+        }
+        if (regions.contains("corner")) {
+            scanRegions.add(new ScanRegion(0.7, 0.7, 0.3, 0.3, null));
+        }
+        DecodeStrategy decodeStrategy = DecodeStrategy.LEGACY;
+        if ("adaptive".equals(strategy)) {
+            Set<BarcodeFormat> formats = barcodeFormat == null ? Collections.emptySet() : EnumSet.of(barcodeFormat);
+            decodeStrategy = new DecodeStrategy(true, true, false, formats);
+        }
+        decoder = new BarcodeDecoder(reader.replace('+', ','), multipleBarcodes, Collections.unmodifiableList(scanRegions), steps, decodeStrategy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCorpus.deleteFolder(folder);
+    }
+
+    /**
+     * Full detection as done by the ticket: reading, binarization and decoding at all configured scales and regions
+     */
+    @Benchmark
+    public List<Result> decode() throws IOException {
+        return decoder.decode(file.getFileName().toString(), opener);
+    }
+
+    /**
+     * Reading the full page into a luminance source only, without binarization and decoding
+     */
+    @Benchmark
+    public LuminanceSource load() throws IOException {
+        return PageImageLoader.load(opener, file.getFileName().toString(), null, 1);
+    }
+
+    /**
+     * Reading the full page into the reused buffer of a decode context, with <code>-prof gc</code> the allocation per page is shown
+     */
+    @Benchmark
+    public LuminanceSource loadIntoContext() throws IOException {
+        return PageImageLoader.load(opener, file.getFileName().toString(), null, 1, null, context, Slot.PAGE);
+    }
+}
@@ -0,0 +1,129 @@
+package org.goobi.api.mq.ticket.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.api.mq.ticket.BarcodeMatcher;
+import org.goobi.api.mq.ticket.StructureBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.FileSet;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.TypeNotAllowedAsChildException;
+import ugh.exceptions.TypeNotAllowedForParentException;
+
+/**
+ * Measures the creation of the pagination and the logical structure of a volume in an in-memory UGH document, without any Goobi database or
+ * metadata file. Every 50th page carries a single page barcode, every 200th page starts a multipage structure which is ended 20 pages before the
+ * next one starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureBenchmark {
+
+    private static final String FOLDER = "/opt/digiverso/goobi/metadata/1/images/benchmark_media/";
+
+    @Param({ "1000", "10000" })
+    private int pages;
+
+    /**
+     * create the structure elements by barcode type instead of content
+     */
+    @Param({ "false", "true" })
+    private boolean docByType;
+
+    private Prefs prefs;
+    private List<String> imageNames;
+    private List<List<Result>> detectedBarcodes;
+
+    private final BarcodeMatcher docstructMatcher = new BarcodeMatcher();
+    private final Map<String, String> docstructMapType = new HashMap<>();
+    private final BarcodeMatcher multiPageDocstructMatcher = new BarcodeMatcher();
+    private final Map<String, String> multiPageDocstructMapType = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, PreferencesException {
+        Path ruleset = Files.createTempFile("benchmark-ruleset", ".xml");
+        try (InputStream in = StructureBenchmark.class.getResourceAsStream("/benchmark-ruleset.xml")) {
+            Files.copy(in, ruleset, StandardCopyOption.REPLACE_EXISTING);
+        }
+        prefs = new Prefs();
+        prefs.loadPrefs(ruleset.toString());
+        Files.delete(ruleset);
+
+        docstructMatcher.addCode(SyntheticCorpus.EAN_13_CONTENT, "Cover");
+        docstructMapType.put(BarcodeFormat.EAN_13.toString(), "Cover");
+        multiPageDocstructMatcher.addCode(SyntheticCorpus.CODE_128_CONTENT, "Appendix");
+        multiPageDocstructMatcher.addCode(SyntheticCorpus.QR_CODE_CONTENT, "DocStructEnd");
+        multiPageDocstructMapType.put(BarcodeFormat.CODE_128.toString(), "Appendix");
+        multiPageDocstructMapType.put(BarcodeFormat.QR_CODE.toString(), "DocStructEnd");
+
+        Result single = new Result(SyntheticCorpus.EAN_13_CONTENT, null, new ResultPoint[0], BarcodeFormat.EAN_13);
+        Result start = new Result(SyntheticCorpus.CODE_128_CONTENT, null, new ResultPoint[0], BarcodeFormat.CODE_128);
+        Result end = new Result(SyntheticCorpus.QR_CODE_CONTENT, null, new ResultPoint[0], BarcodeFormat.QR_CODE);
+        imageNames = new ArrayList<>(pages);
+        detectedBarcodes = new ArrayList<>(pages);
+        for (int index = 0; index < pages; index++) {
+            imageNames.add(String.format("%08d.tif", index + 1));
+            if (index % 200 == 0) {
+                detectedBarcodes.add(Collections.singletonList(start));
+            } else if (index % 200 == 180) {
+                detectedBarcodes.add(Collections.singletonList(end));
+            } else if (index % 50 == 0) {
+                detectedBarcodes.add(Collections.singletonList(single));
+            } else {
+                detectedBarcodes.add(Collections.emptyList());
+            }
+        }
+    }
+
+    @Benchmark
+    public DigitalDocument buildStructure()
+            throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
+        DigitalDocument digDoc = new DigitalDocument();
+        digDoc.setFileSet(new FileSet());
+        DocStruct logical = digDoc.createDocStruct(prefs.getDocStrctTypeByName("Monograph"));
+        digDoc.setLogicalDocStruct(logical);
+        DocStruct physical = digDoc.createDocStruct(prefs.getDocStrctTypeByName("BoundBook"));
+        digDoc.setPhysicalDocStruct(physical);
+
+        StructureBuilder structureBuilder = new StructureBuilder(prefs, digDoc, logical, physical, FOLDER, docByType, "BarcodeID",
+                docstructMatcher, docstructMapType, multiPageDocstructMatcher, multiPageDocstructMapType);
+        for (int index = 0; index < pages; index++) {
+            structureBuilder.addPage(index, imageNames.get(index), detectedBarcodes.get(index));
+        }
+        return digDoc;
+    }
+}
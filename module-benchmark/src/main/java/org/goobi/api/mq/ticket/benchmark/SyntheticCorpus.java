@@ -0,0 +1,192 @@
+package org.goobi.api.mq.ticket.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Generates synthetic A4 page images for the benchmarks. A page contains lines of fake text and optionally one barcode at a given position, so the
+ * binarizer and the decoders see a realistic amount of structure.
+ */
+public final class SyntheticCorpus {
+
+    /**
+     * Position of the barcode on the page
+     */
+    public enum Position {
+        TOP,
+        CORNER,
+        CENTER
+    }
+
+    public static final String EAN_13_CONTENT = "705632441947";
+    public static final String QR_CODE_CONTENT = "https://goobi.io/barcode/123456789012";
+    public static final String CODE_128_CONTENT = "SEP-000123";
+
+    private static final double A4_WIDTH_INCH = 8.27;
+    private static final double A4_HEIGHT_INCH = 11.69;
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * Writes a page to the folder and returns its path
+     *
+     * @param folder
+     * @param dpi resolution of the page
+     * @param format image format, tif, png or jpg
+     * @param barcodeFormat format of the barcode, null for a page without barcode
+     * @param position position of the barcode
+     * @return
+     * @throws IOException
+     */
+    public static Path writePage(Path folder, int dpi, String format, BarcodeFormat barcodeFormat, Position position) throws IOException {
+        BufferedImage page = createPage(dpi, barcodeFormat, position);
+        String name = dpi + "_" + (barcodeFormat == null ? "blank" : barcodeFormat + "_" + position) + "." + format;
+        Path file = folder.resolve(name);
+        String formatName = "jpg".equals(format) ? "jpeg" : "tif".equals(format) ? "tiff" : format;
+        if (!ImageIO.write(page, formatName, file.toFile())) {
+            throw new IOException("No image writer found for format " + format);
+        }
+        return file;
+    }
+
+    /**
+     * Creates an 8 bit grayscale A4 page
+     *
+     * @param dpi
+     * @param barcodeFormat
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage createPage(int dpi, BarcodeFormat barcodeFormat, Position position) throws IOException {
+        int width = (int) (A4_WIDTH_INCH * dpi);
+        int height = (int) (A4_HEIGHT_INCH * dpi);
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = page.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            drawText(graphics, width, height, dpi);
+            if (barcodeFormat != null) {
+                BufferedImage barcode = createBarcode(barcodeFormat, dpi);
+                int margin = dpi / 2;
+                int x;
+                int y;
+                switch (position) {
+                    case TOP:
+                        x = (width - barcode.getWidth()) / 2;
+                        y = margin;
+                        break;
+                    case CORNER:
+                        x = width - barcode.getWidth() - margin;
+                        y = height - barcode.getHeight() - margin;
+                        break;
+                    case CENTER:
+                    default:
+                        x = (width - barcode.getWidth()) / 2;
+                        y = (height - barcode.getHeight()) / 2;
+                }
+                // clear the area behind the barcode
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(x, y, barcode.getWidth(), barcode.getHeight());
+                graphics.drawImage(barcode, x, y, null);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return page;
+    }
+
+    /**
+     * Draws lines of random word blocks, like a page of printed text looks to the binarizer
+     */
+    private static void drawText(Graphics2D graphics, int width, int height, int dpi) {
+        Random random = new Random(dpi);
+        int lineHeight = Math.max(4, dpi / 6);
+        int glyphHeight = Math.max(2, lineHeight / 2);
+        int margin = dpi;
+        graphics.setColor(Color.DARK_GRAY);
+        for (int y = margin * 2; y < height - margin; y += lineHeight) {
+            int x = margin;
+            while (x < width - margin) {
+                int wordWidth = Math.max(3, (int) (dpi * (0.1 + random.nextDouble() * 0.4)));
+                graphics.fillRect(x, y, Math.min(wordWidth, width - margin - x), glyphHeight);
+                x += wordWidth + dpi / 12;
+            }
+        }
+    }
+
+    private static BufferedImage createBarcode(BarcodeFormat barcodeFormat, int dpi) throws IOException {
+        String content;
+        int width;
+        int height;
+        switch (barcodeFormat) {
+            case EAN_13:
+                content = EAN_13_CONTENT;
+                width = (int) (dpi * 1.5);
+                height = dpi;
+                break;
+            case QR_CODE:
+                content = QR_CODE_CONTENT;
+                width = dpi;
+                height = dpi;
+                break;
+            case CODE_128:
+                content = CODE_128_CONTENT;
+                width = (int) (dpi * 2.0);
+                height = dpi / 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported barcode format " + barcodeFormat);
+        }
+        try {
+            BitMatrix matrix = new MultiFormatWriter().encode(content, barcodeFormat, width, height);
+            return MatrixToImageWriter.toBufferedImage(matrix);
+        } catch (WriterException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Creates a new temporary folder for the corpus
+     *
+     * @return
+     * @throws IOException
+     */
+    public static Path createFolder() throws IOException {
+        return Files.createTempDirectory("barcode-benchmark");
+    }
+
+    /**
+     * Deletes the corpus folder and all pages in it
+     *
+     * @param folder
+     * @throws IOException
+     */
+    public static void deleteFolder(Path folder) throws IOException {
+        if (folder == null || !Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(folder);
+    }
+}
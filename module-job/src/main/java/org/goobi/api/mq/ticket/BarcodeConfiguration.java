@@ -0,0 +1,543 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+
+import com.google.zxing.BarcodeFormat;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Immutable snapshot of the plugin configuration. The snapshot is shared between all tickets and only parsed again, when the modification date of
+ * the configuration file changes. The barcode lookup tables are compiled once for every configured parentStruct, so a ticket only needs a single
+ * lookup by the type of its top structure element.
+ */
+@Log4j
+@Getter
+public class BarcodeConfiguration {
+
+    private static BarcodeConfiguration cachedConfiguration;
+    private static long cachedModificationDate;
+
+    private final boolean skipWhenDataExists;
+    private final boolean docByType;
+    private final String uuidMetadata;
+    private final boolean hasMultipleBarcodes;
+    private final String readerName;
+    private final int decodeThreads;
+    private final List<Integer> subsamplingSteps;
+    private final String derivativeFolder;
+    private final boolean multipageFiles;
+    private final String frameMetadata;
+    private final boolean useDecodeCache;
+    private final boolean incremental;
+    private final int checkpointInterval;
+    private final int prefetchImages;
+    private final int prefetchMegabytes;
+    private final boolean useVirtualThreads;
+    private final int virtualThreadReads;
+    private final int virtualThreadMegabytes;
+    private final boolean metricsJournal;
+    private final boolean metricsJmx;
+    private final boolean adaptiveDecoding;
+    private final boolean restrictFormats;
+    private final boolean tryRotated;
+    private final boolean tryInverted;
+    private final PagePrefilter prefilter;
+    private final PageSampler sampler;
+    private final int fastQueueMaxImages;
+    private final int fastQueueMaxMegabytes;
+    private final int memoryBudgetMegabytes;
+    private final MemoryAdmission.Mode memoryAdmissionMode;
+    private final int memoryMaxSubsampling;
+
+    private final Map<String, StructureRules> rulesByParentStruct = new HashMap<>();
+    private final StructureRules defaultRules;
+
+    /**
+     * Code lists loaded from CSV files and their modification dates, each file is only read once
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<Path, Map<String, String>> catalogs = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Map<Path, Long> catalogModificationDates = new HashMap<>();
+
+    /**
+     * Returns the current configuration of the plugin. The configuration file is only parsed, if it was changed since the last call.
+     *
+     * @param title
+     * @return
+     */
+    public static synchronized BarcodeConfiguration getInstance(String title) {
+        long modificationDate = getModificationDate(title);
+        if (cachedConfiguration == null || modificationDate != cachedModificationDate || cachedConfiguration.isCatalogChanged()) {
+            cachedConfiguration = new BarcodeConfiguration(ConfigPlugins.getPluginConfig(title));
+            cachedModificationDate = modificationDate;
+        }
+        return cachedConfiguration;
+    }
+
+    private static long getModificationDate(String title) {
+        return getModificationDate(Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "plugin_" + title + ".xml"));
+    }
+
+    private static long getModificationDate(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            // always read the configuration again
+            return -1;
+        }
+    }
+
+    private boolean isCatalogChanged() {
+        for (Map.Entry<Path, Long> entry : catalogModificationDates.entrySet()) {
+            if (getModificationDate(entry.getKey()) != entry.getValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a list of codes from a CSV file. Each line contains a code and optionally the name of the structure element, separated by semicolon
+     * or comma. Empty lines and lines starting with # are ignored.
+     *
+     * @param fileName absolute or relative to the configuration folder
+     * @param defaultDocstruct used for lines without structure element
+     * @return the structure elements by code
+     */
+    private Map<String, String> getCatalog(String fileName, String defaultDocstruct) {
+        Path file = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder()).resolve(fileName);
+        Map<String, String> catalog = catalogs.get(file);
+        if (catalog == null) {
+            catalog = new HashMap<>();
+            catalogModificationDates.put(file, getModificationDate(file));
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] columns = line.split("[;,]", 2);
+                    String code = unquote(columns[0]);
+                    String docstruct = columns.length > 1 ? unquote(columns[1]) : "";
+                    if (!code.isEmpty()) {
+                        catalog.put(code, docstruct);
+                    }
+                }
+                log.info("Read " + catalog.size() + " codes from " + file);
+            } catch (IOException e) {
+                log.error("Unable to read barcode catalog " + file, e);
+            }
+            catalogs.put(file, catalog);
+        }
+        if (defaultDocstruct == null || defaultDocstruct.isEmpty()) {
+            return catalog;
+        }
+        Map<String, String> result = new HashMap<>(catalog);
+        result.replaceAll((code, docstruct) -> docstruct.isEmpty() ? defaultDocstruct : docstruct);
+        return result;
+    }
+
+    /**
+     * Joins the names of chained decoder engines again, if the configuration split the value at the commas
+     *
+     * @param values
+     * @param defaultValue used if no value is configured
+     * @return
+     */
+    private static String getEngineNames(String[] values, String defaultValue) {
+        return values.length == 0 ? defaultValue : String.join(",", values);
+    }
+
+    private static String unquote(String value) {
+        String result = value.trim();
+        if (result.length() > 1 && result.startsWith("\"") && result.endsWith("\"")) {
+            result = result.substring(1, result.length() - 1).trim();
+        }
+        return result;
+    }
+
+    private BarcodeConfiguration(XMLConfiguration config) {
+        config.setExpressionEngine(new XPathExpressionEngine());
+        skipWhenDataExists = config.getBoolean("/skipWhenDataExists", false);
+        docByType = config.getBoolean("/docStuctByType", false);
+        uuidMetadata = config.getString("/uuidMetadatum");
+        // if this is set true the plugin will look for more than one barcode per image
+        hasMultipleBarcodes = config.getBoolean("/multipleBarcodes", false);
+        //this is the reader used to decode the barcodes on images
+        readerName = getEngineNames(config.getStringArray("/reader"), DecoderEngines.DEFAULT_ENGINE);
+        // number of images decoded in parallel, 0 uses one thread per available processor
+        int threads = config.getInt("/decodeThreads", 1);
+        decodeThreads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        subsamplingSteps = Collections.unmodifiableList(getSubsamplingSteps(config));
+        derivativeFolder = config.getString("/derivativeFolder", "");
+        multipageFiles = config.getBoolean("/multipageFiles", false);
+        frameMetadata = config.getString("/frameMetadata", "");
+        useDecodeCache = config.getBoolean("/decodeCache", false);
+        incremental = config.getBoolean("/incremental", false);
+        checkpointInterval = Math.max(0, config.getInt("/checkpointInterval", 0));
+        prefetchImages = config.getInt("/prefetch/images", 0);
+        prefetchMegabytes = config.getInt("/prefetch/maxMegabytes", 256);
+        useVirtualThreads = "virtual".equals(config.getString("/executionMode", "platform"));
+        virtualThreadReads = Math.max(1, config.getInt("/virtualThreads/maxReads", 64));
+        virtualThreadMegabytes = Math.max(1, config.getInt("/virtualThreads/maxMegabytes", 512));
+        metricsJournal = config.getBoolean("/metrics/journal", false);
+        metricsJmx = config.getBoolean("/metrics/jmx", false);
+        adaptiveDecoding = config.getBoolean("/decodeStrategy/adaptive", false);
+        restrictFormats = config.getBoolean("/decodeStrategy/restrictFormats", false);
+        tryRotated = config.getBoolean("/decodeStrategy/rotate", false);
+        tryInverted = config.getBoolean("/decodeStrategy/invert", false);
+        prefilter = getPrefilter(config);
+        sampler = getSampler(config);
+        fastQueueMaxImages = config.getInt("/queueRouting/fastQueueMaxImages", 0);
+        fastQueueMaxMegabytes = config.getInt("/queueRouting/fastQueueMaxMegabytes", 0);
+        memoryBudgetMegabytes = Math.max(0, config.getInt("/memoryAdmission/budgetMegabytes", 0));
+        memoryAdmissionMode = "downscale".equals(config.getString("/memoryAdmission/mode", "block")) ? MemoryAdmission.Mode.DOWNSCALE
+                : MemoryAdmission.Mode.BLOCK;
+        memoryMaxSubsampling = Math.max(1, config.getInt("/memoryAdmission/maxSubsampling", 4));
+
+        @SuppressWarnings("unchecked")
+        List<HierarchicalConfiguration> itemList = config.configurationsAt("/singlePageStructures/item");
+        List<HierarchicalConfiguration> multiPageItemList = new ArrayList<>();
+        for (String path : new String[] { "/multipageStructures/item", "/multipageStructure/item" }) {
+            @SuppressWarnings("unchecked")
+            List<HierarchicalConfiguration> items = config.configurationsAt(path);
+            multiPageItemList.addAll(items);
+        }
+        @SuppressWarnings("unchecked")
+        List<HierarchicalConfiguration> decoderList = config.configurationsAt("/decoders/decoder");
+        List<ScanRegion> scanRegions = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        List<HierarchicalConfiguration> regionList = config.configurationsAt("/scanRegions/region");
+        for (HierarchicalConfiguration region : regionList) {
+            scanRegions.add(new ScanRegion(region.getDouble("@x", 0), region.getDouble("@y", 0), region.getDouble("@width", 1),
+                    region.getDouble("@height", 1), region.getString("@parentStruct")));
+        }
+
+        // compile the lookup tables for every parentStruct mentioned in the configuration
+        Set<String> parentStructs = new LinkedHashSet<>();
+        for (HierarchicalConfiguration item : itemList) {
+            parentStructs.add(item.getString("@parentStruct", ""));
+        }
+        for (HierarchicalConfiguration item : multiPageItemList) {
+            parentStructs.add(item.getString("@parentStruct", ""));
+        }
+        for (ScanRegion region : scanRegions) {
+            parentStructs.add(region.getParentStruct() == null ? "" : region.getParentStruct());
+        }
+        for (HierarchicalConfiguration decoder : decoderList) {
+            parentStructs.add(decoder.getString("@parentStruct", ""));
+        }
+        parentStructs.remove("");
+        for (String parentStruct : parentStructs) {
+            rulesByParentStruct.put(parentStruct, new StructureRules(parentStruct, itemList, multiPageItemList, scanRegions, decoderList));
+        }
+        defaultRules = new StructureRules("", itemList, multiPageItemList, scanRegions, decoderList);
+    }
+
+    /**
+     * Returns the lookup tables for processes with the given top structure element
+     *
+     * @param parentStruct
+     * @return
+     */
+    public StructureRules getRules(String parentStruct) {
+        StructureRules rules = rulesByParentStruct.get(parentStruct);
+        return rules == null ? defaultRules : rules;
+    }
+
+    /**
+     * Returns the decoding settings of all types of top structure elements
+     *
+     * @return
+     */
+    public Set<String> getAllDecodeSettings() {
+        Set<String> settings = new HashSet<>();
+        settings.add(defaultRules.getDecodeSettings());
+        for (StructureRules rules : rulesByParentStruct.values()) {
+            settings.add(rules.getDecodeSettings());
+        }
+        return settings;
+    }
+
+    /**
+     * Creates the prefilter, if it is enabled
+     *
+     * @param config
+     * @return the prefilter or null
+     */
+    private static PagePrefilter getPrefilter(XMLConfiguration config) {
+        String mode = config.getString("/prefilter/mode", "off");
+        if (!"on".equals(mode) && !"verify".equals(mode)) {
+            return null;
+        }
+        return new PagePrefilter(config.getInt("/prefilter/subsampling", 4), config.getInt("/prefilter/minTransitions", 20),
+                config.getBoolean("/prefilter/finderPatterns", true), "verify".equals(mode));
+    }
+
+    /**
+     * Creates the sampling policy, if not all images are to be decoded
+     *
+     * @param config
+     * @return the sampler or null
+     */
+    private static PageSampler getSampler(XMLConfiguration config) {
+        String mode = config.getString("/sampling/mode", "all");
+        try {
+            switch (mode) {
+                case "interval":
+                    return new PageSampler(PageSampler.Mode.INTERVAL, config.getInt("/sampling/interval", 1), config.getInt("/sampling/offset", 0),
+                            null);
+                case "recto":
+                    return new PageSampler(PageSampler.Mode.RECTO, 2, 0, null);
+                case "groupStart":
+                    return new PageSampler(PageSampler.Mode.GROUP_START, 1, 0,
+                            Pattern.compile(config.getString("/sampling/pattern", "^(.*?)[_-]?\\d+\\.\\w+$")));
+                case "pattern":
+                    String pattern = config.getString("/sampling/pattern", "");
+                    if (pattern.isEmpty()) {
+                        log.error("No sampling pattern configured, all images are decoded");
+                        return null;
+                    }
+                    return new PageSampler(PageSampler.Mode.PATTERN, 1, 0, Pattern.compile(pattern));
+                default:
+                    return null;
+            }
+        } catch (PatternSyntaxException e) {
+            log.error("Invalid sampling pattern in configuration, all images are decoded", e);
+            return null;
+        }
+    }
+
+    /**
+     * Converts the configured scale factors into subsampling factors, starting with the smallest scale. The full resolution is always added as last
+     * step, maxSteps limits the total number of steps.
+     *
+     * @param config
+     * @return
+     */
+    private static List<Integer> getSubsamplingSteps(XMLConfiguration config) {
+        TreeSet<Integer> factors = new TreeSet<>();
+        for (String scale : config.getStringArray("/downsampling/scale")) {
+            try {
+                double value = Double.parseDouble(scale.trim());
+                if (value > 0 && value < 1) {
+                    factors.add((int) Math.round(1 / value));
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Invalid scale factor " + scale + " in configuration");
+            }
+        }
+        factors.remove(1);
+        int maxSteps = Math.max(1, config.getInt("/downsampling/maxSteps", factors.size() + 1));
+        List<Integer> steps = new ArrayList<>();
+        // largest subsampling factor = smallest image first
+        for (Integer factor : factors.descendingSet()) {
+            if (steps.size() >= maxSteps - 1) {
+                break;
+            }
+            steps.add(factor);
+        }
+        steps.add(1);
+        return steps;
+    }
+
+    /**
+     * The barcode lookup tables and scan regions for one type of top structure element. Items and regions without parentStruct are used for all
+     * types.
+     */
+    @Getter
+    public class StructureRules {
+
+        private final BarcodeMatcher docstructMatcher = new BarcodeMatcher();
+        private final Map<String, String> docstructMapType = new HashMap<>();
+        private final BarcodeMatcher multiPageDocstructMatcher = new BarcodeMatcher();
+        private final Map<String, String> multiPageDocstructMapType = new HashMap<>();
+        private final List<ScanRegion> scanRegions = new ArrayList<>();
+
+        /**
+         * The decoder engines used for the pages, see {@link DecoderEngines#create(String, Map)}
+         */
+        private final String engine;
+
+        /**
+         * The decoding effort and the formats used by the rules
+         */
+        private final DecodeStrategy decodeStrategy;
+
+        /**
+         * Describes all settings which influence the decoding result, cached results are only used if they were decoded with the same settings
+         */
+        private final String decodeSettings;
+
+        private StructureRules(String parentStruct, List<HierarchicalConfiguration> itemList, List<HierarchicalConfiguration> multiPageItemList,
+                List<ScanRegion> allScanRegions, List<HierarchicalConfiguration> decoderList) {
+            for (HierarchicalConfiguration item : itemList) {
+                if (matches(item, parentStruct)) {
+                    addItem(docstructMatcher, docstructMapType, item);
+                }
+            }
+            for (HierarchicalConfiguration item : multiPageItemList) {
+                if (matches(item, parentStruct)) {
+                    addItem(multiPageDocstructMatcher, multiPageDocstructMapType, item);
+                }
+            }
+            for (ScanRegion region : allScanRegions) {
+                if (region.matches(parentStruct)) {
+                    scanRegions.add(region);
+                }
+            }
+            engine = getEngine(parentStruct, decoderList);
+            decodeStrategy = new DecodeStrategy(adaptiveDecoding, tryRotated, tryInverted,
+                    restrictFormats ? getPossibleFormats() : Collections.emptySet());
+            StringBuilder settings = new StringBuilder();
+            settings.append("reader=").append(engine).append(";multiple=").append(hasMultipleBarcodes);
+            settings.append(";derivatives=").append(derivativeFolder).append(";steps=").append(subsamplingSteps).append(";regions=");
+            for (ScanRegion region : scanRegions) {
+                settings.append('[')
+                        .append(region.getX())
+                        .append(',')
+                        .append(region.getY())
+                        .append(',')
+                        .append(region.getWidth())
+                        .append(',')
+                        .append(region.getHeight())
+                        .append(']');
+            }
+            settings.append(";strategy=").append(decodeStrategy);
+            if (prefilter != null && !prefilter.isVerify()) {
+                // rejected pages are cached without barcodes
+                settings.append(";prefilter=").append(prefilter);
+            }
+            decodeSettings = settings.toString();
+        }
+
+        /**
+         * Returns the decoder engines for the parentStruct. A decoder with this parentStruct is used before one without parentStruct, the reader is
+         * used if neither exists.
+         *
+         * @param parentStruct
+         * @param decoderList
+         * @return
+         */
+        private String getEngine(String parentStruct, List<HierarchicalConfiguration> decoderList) {
+            String result = readerName;
+            for (HierarchicalConfiguration decoder : decoderList) {
+                if (decoder.getString("@parentStruct", "").isEmpty()) {
+                    result = getEngineNames(decoder.getStringArray("@engine"), result);
+                }
+            }
+            for (HierarchicalConfiguration decoder : decoderList) {
+                if (!parentStruct.isEmpty() && parentStruct.equals(decoder.getString("@parentStruct", ""))) {
+                    result = getEngineNames(decoder.getStringArray("@engine"), result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Collects the formats configured as 'type' of the rules. Barcodes of other formats are never mapped to a structure element, so they don't
+         * need to be searched for. If the structure elements are created from the content of the barcodes, the format can't be told from the
+         * configured codes, as many formats encode digits, so all formats are searched.
+         *
+         * @return the formats or an empty set for all formats
+         */
+        private Set<BarcodeFormat> getPossibleFormats() {
+            if (!docByType) {
+                return Collections.emptySet();
+            }
+            Set<BarcodeFormat> formats = EnumSet.noneOf(BarcodeFormat.class);
+            List<String> types = new ArrayList<>(docstructMapType.keySet());
+            types.addAll(multiPageDocstructMapType.keySet());
+            for (String type : types) {
+                try {
+                    formats.add(BarcodeFormat.valueOf(type));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Unknown barcode type " + type + " in configuration");
+                }
+            }
+            return formats;
+        }
+
+        /**
+         * Adds the rules of an item. An item can contain a single barcode, a prefix, a range given by from and to, a regular expression or a CSV
+         * file with a list of barcodes, and additionally a barcode type.
+         *
+         * @param matcher
+         * @param typeMap
+         * @param item
+         */
+        private void addItem(BarcodeMatcher matcher, Map<String, String> typeMap, HierarchicalConfiguration item) {
+            String docstruct = item.getString("@docstruct");
+            put(typeMap, item.getString("@type"), docstruct);
+            String barcode = item.getString("@barcode");
+            if (barcode != null && !barcode.isEmpty()) {
+                matcher.addCode(barcode, docstruct);
+            }
+            String prefix = item.getString("@prefix");
+            if (prefix != null && !prefix.isEmpty()) {
+                matcher.addPrefix(prefix, docstruct);
+            }
+            String from = item.getString("@from");
+            if (from != null && !from.isEmpty()) {
+                try {
+                    matcher.addRange(from, item.getString("@to", from), docstruct);
+                } catch (IllegalArgumentException e) {
+                    log.error("Invalid barcode range in configuration, it is ignored: " + e.getMessage());
+                }
+            }
+            String pattern = item.getString("@pattern");
+            if (pattern != null && !pattern.isEmpty()) {
+                try {
+                    matcher.addPattern(pattern, docstruct);
+                } catch (PatternSyntaxException e) {
+                    log.error("Invalid barcode pattern " + pattern + " in configuration", e);
+                }
+            }
+            String catalog = item.getString("@catalog");
+            if (catalog != null && !catalog.isEmpty()) {
+                for (Map.Entry<String, String> entry : getCatalog(catalog, docstruct).entrySet()) {
+                    if (!entry.getValue().isEmpty()) {
+                        matcher.addCode(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+
+        private boolean matches(HierarchicalConfiguration item, String parentStruct) {
+            String itemParent = item.getString("@parentStruct", "");
+            return itemParent.isEmpty() || itemParent.equals(parentStruct);
+        }
+
+        private void put(Map<String, String> map, String key, String docstruct) {
+            if (key != null && !key.isEmpty()) {
+                map.put(key, docstruct);
+            }
+        }
+    }
+}
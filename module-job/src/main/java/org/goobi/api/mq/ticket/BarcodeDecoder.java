@@ -0,0 +1,433 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.goobi.api.mq.ticket.BarcodeMetrics.Phase;
+import org.goobi.api.mq.ticket.DecodeContext.Slot;
+import org.goobi.api.mq.ticket.PageImageLoader.PageImage;
+import org.goobi.api.mq.ticket.PageImageLoader.StreamOpener;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.FormatException;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+import com.google.zxing.common.BitMatrix;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Searches page images for barcodes. The image is read at the configured reduced resolutions first and at each resolution the configured scan
+ * regions are searched before the whole page. If only one barcode is expected per page, the search stops at the first region or resolution which
+ * contains a barcode. With the adaptive strategy every image is decoded with the fast settings first, TRY_HARDER, rotated and inverted images are
+ * only tried if the page plausibly contains a barcode.
+ *
+ * Every instance holds its own ZXing readers and a {@link DecodeContext} with the buffers the images are read and binarized into. Neither is thread
+ * safe, so an instance must only be used by one thread at a time. The memory of an image stays reserved until it is decoded, the buffers are
+ * counted as retained memory until the decoder is closed.
+ */
+@Log4j
+public class BarcodeDecoder {
+
+    /**
+     * The engine to be used to find barcodes with the hints of the fast pass
+     */
+    private final DecoderEngine fastEngine;
+
+    /**
+     * The engine to be used to find barcodes with maximum effort
+     */
+    private final DecoderEngine hardEngine;
+
+    /**
+     * true if there might be more than 1 barcode per image
+     */
+    private final boolean hasMultipleBarcodes;
+
+    /**
+     * Areas of the page which are searched for barcodes before the whole page is decoded
+     */
+    private final List<ScanRegion> scanRegions;
+
+    /**
+     * Subsampling factors used to read the images, in the order they are tried
+     */
+    private final List<Integer> subsamplingSteps;
+
+    /**
+     * Determines the effort spent on a page and the formats searched for
+     */
+    private final DecodeStrategy strategy;
+
+    /**
+     * Hints of the fast pass, prepared once for all images
+     */
+    private final Map<DecodeHintType, Object> fastHints;
+
+    /**
+     * Hints used to decode pages with maximum effort, prepared once for all images
+     */
+    private final Map<DecodeHintType, Object> hardHints;
+
+    /**
+     * Buffers reused for all images decoded by this instance
+     */
+    private final DecodeContext context = new DecodeContext();
+
+    /**
+     * Checks pages for a barcode signature before they are decoded, null if all pages are decoded
+     */
+    private PagePrefilter prefilter;
+
+    /**
+     * The image read by the prefilter, it is used again if the whole page is decoded at the same resolution
+     */
+    private LuminanceSource preview;
+    private String previewName;
+    private int previewSubsampling;
+
+    /**
+     * true if the last single barcode search found a code which could not be read
+     */
+    private boolean unreadableCodeFound;
+
+    /**
+     * Metrics of the current ticket, null if no metrics are collected
+     */
+    private BarcodeMetrics metrics;
+
+    public BarcodeDecoder(String engineNames, boolean hasMultipleBarcodes, List<ScanRegion> scanRegions, List<Integer> subsamplingSteps) {
+        this(engineNames, hasMultipleBarcodes, scanRegions, subsamplingSteps, DecodeStrategy.LEGACY);
+    }
+
+    /**
+     * @param engineNames the decoder engines, see {@link DecoderEngines#create(String, Map)}
+     * @param hasMultipleBarcodes
+     * @param scanRegions
+     * @param subsamplingSteps
+     * @param strategy
+     */
+    public BarcodeDecoder(String engineNames, boolean hasMultipleBarcodes, List<ScanRegion> scanRegions, List<Integer> subsamplingSteps,
+            DecodeStrategy strategy) {
+        this.hasMultipleBarcodes = hasMultipleBarcodes;
+        this.scanRegions = scanRegions;
+        this.subsamplingSteps = subsamplingSteps;
+        this.strategy = strategy;
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        if (!strategy.getPossibleFormats().isEmpty()) {
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, new ArrayList<BarcodeFormat>(strategy.getPossibleFormats()));
+        }
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.FALSE);
+        fastHints = Collections.unmodifiableMap(new EnumMap<>(hints));
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        hardHints = Collections.unmodifiableMap(hints);
+        fastEngine = DecoderEngines.create(engineNames, fastHints);
+        hardEngine = DecoderEngines.create(engineNames, hardHints);
+    }
+
+    /**
+     * Sets the metrics the time spent in reading, binarization and decoding is added to
+     *
+     * @param metrics
+     */
+    public void setMetrics(BarcodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the prefilter used by {@link #isCandidate(String, StreamOpener, boolean)}
+     *
+     * @param prefilter
+     */
+    public void setPrefilter(PagePrefilter prefilter) {
+        this.prefilter = prefilter;
+    }
+
+    /**
+     * Releases the buffers of the decoder at the end of the ticket, it can be used again afterwards
+     */
+    public void close() {
+        preview = null;
+        context.close();
+    }
+
+    /**
+     * Checks with the prefilter if the image may contain a barcode. The image is read at the subsampling of the prefilter and kept, so it does not
+     * need to be read again if the page is decoded at the same resolution.
+     *
+     * @param imageName
+     * @param opener
+     * @param reduced true if the image is already reduced in size and is checked at its own resolution
+     * @return true if the image needs to be decoded
+     * @throws IOException
+     */
+    public boolean isCandidate(String imageName, StreamOpener opener, boolean reduced) throws IOException {
+        preview = null;
+        if (prefilter == null) {
+            return true;
+        }
+        int subsampling = reduced ? 1 : prefilter.getSubsampling();
+        LuminanceSource source;
+        boolean candidate;
+        // the memory of the image stays reserved until its bit matrix is checked
+        try (PageImage page = PageImageLoader.open(opener, imageName, metrics, context)) {
+            source = page.read(null, subsampling, Slot.PREVIEW);
+            long start = System.nanoTime();
+            try {
+                candidate = prefilter.accepts(context.createBinarizer(source).getBlackMatrix());
+            } catch (NotFoundException e) {
+                candidate = false;
+            }
+            if (metrics != null) {
+                metrics.addTime(Phase.PREFILTER, System.nanoTime() - start);
+            }
+        }
+        if (candidate || prefilter.isVerify()) {
+            preview = source;
+            previewName = imageName;
+            previewSubsampling = subsampling;
+        }
+        return candidate;
+    }
+
+    /**
+     * Searches the image at all configured resolutions, starting with the smallest one. The file is only opened once for all resolutions. If only
+     * one barcode is expected per page, the search stops at the first resolution with a barcode. Otherwise all resolutions are searched, because
+     * small codes may only be readable at the full resolution, and their barcodes are combined.
+     *
+     * @param imageName
+     * @param opener
+     * @return
+     * @throws IOException
+     */
+    public List<Result> decode(String imageName, StreamOpener opener) throws IOException {
+        try (PageImage page = PageImageLoader.open(opener, imageName, metrics, context)) {
+            List<Result> detectedBarcode = new ArrayList<>();
+            for (int subsampling : subsamplingSteps) {
+                List<Result> found = decode(imageName, page, subsampling);
+                if (!found.isEmpty()) {
+                    log.debug("Barcode found in image " + imageName + " at scale 1/" + subsampling);
+                    if (!hasMultipleBarcodes) {
+                        return found;
+                    }
+                    merge(detectedBarcode, found);
+                }
+            }
+            return detectedBarcode;
+        }
+    }
+
+    /**
+     * Searches the image at the given resolution for barcodes, starting with the configured scan regions. Only the region currently searched is read
+     * from the file.
+     *
+     * @param imageName
+     * @param opener
+     * @param subsampling
+     * @return
+     * @throws IOException
+     */
+    public List<Result> decode(String imageName, StreamOpener opener, int subsampling) throws IOException {
+        try (PageImage page = PageImageLoader.open(opener, imageName, metrics, context)) {
+            return decode(imageName, page, subsampling);
+        }
+    }
+
+    /**
+     * Searches the scan regions and then the whole page. If only one barcode is expected per page, the whole page is skipped once a region contains
+     * a barcode, otherwise the barcodes of the regions and the whole page are combined.
+     *
+     * @param imageName
+     * @param page
+     * @param subsampling
+     * @return
+     * @throws IOException
+     */
+    private List<Result> decode(String imageName, PageImage page, int subsampling) throws IOException {
+        List<Result> detectedBarcode = new ArrayList<>();
+        for (ScanRegion region : scanRegions) {
+            LuminanceSource source = page.read(region, subsampling, Slot.PAGE);
+            if (source != null) {
+                List<Result> found = decode(imageName, source);
+                if (!found.isEmpty() && !hasMultipleBarcodes) {
+                    return found;
+                }
+                merge(detectedBarcode, found);
+            }
+        }
+        LuminanceSource source;
+        if (preview != null && imageName.equals(previewName) && subsampling == previewSubsampling) {
+            source = preview;
+            preview = null;
+        } else {
+            source = page.read(null, subsampling, Slot.PAGE);
+        }
+        merge(detectedBarcode, decode(imageName, source));
+        return detectedBarcode;
+    }
+
+    /**
+     * Adds the barcodes which are not contained in the list yet, a barcode found in several attempts is only added once
+     *
+     * @param detectedBarcode
+     * @param found
+     */
+    static void merge(List<Result> detectedBarcode, List<Result> found) {
+        for (Result result : found) {
+            boolean known = false;
+            for (Result existing : detectedBarcode) {
+                if (existing.getBarcodeFormat() == result.getBarcodeFormat() && existing.getText().equals(result.getText())) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                detectedBarcode.add(result);
+            }
+        }
+    }
+
+    /**
+     * Checks if one or more barcodes are to be read and calls the appropriate method, compiling the return
+     *
+     * @param imageName
+     * @param source
+     * @return
+     */
+    public List<Result> decode(String imageName, LuminanceSource source) {
+        long start = System.nanoTime();
+        Binarizer binarizer = metrics == null ? context.createBinarizer(source) : new TimedBinarizer(context.createBinarizer(source));
+        BinaryBitmap bm = new BinaryBitmap(binarizer);
+        List<Result> detectedBarcode;
+        if (strategy.isAdaptive()) {
+            detectedBarcode = decodeAdaptive(imageName, binarizer, bm);
+        } else {
+            // single barcodes are searched with maximum effort, multiple barcodes with the fast settings
+            detectedBarcode = decode(imageName, bm, hasMultipleBarcodes ? fastHints : hardHints);
+        }
+        if (metrics != null) {
+            long binarizationTime = ((TimedBinarizer) binarizer).getElapsed();
+            metrics.addTime(Phase.BINARIZATION, binarizationTime);
+            metrics.addTime(Phase.BARCODE_DECODE, System.nanoTime() - start - binarizationTime);
+        }
+        return detectedBarcode;
+    }
+
+    /**
+     * Decodes the image with the fast settings first. Only if the page plausibly contains a barcode, because a code was located but not read or
+     * because the page contains a stretch of bars, it is decoded again with TRY_HARDER. The rotated image is only decoded if the bars are horizontal,
+     * the inverted image is tried last, as configured.
+     *
+     * @param imageName
+     * @param binarizer
+     * @param bm
+     * @return
+     */
+    private List<Result> decodeAdaptive(String imageName, Binarizer binarizer, BinaryBitmap bm) {
+        unreadableCodeFound = false;
+        List<Result> detectedBarcode = decode(imageName, bm, fastHints);
+        if (!detectedBarcode.isEmpty()) {
+            return detectedBarcode;
+        }
+        BitMatrix matrix;
+        try {
+            matrix = bm.getBlackMatrix();
+        } catch (NotFoundException e) {
+            return detectedBarcode;
+        }
+        boolean verticalBars = unreadableCodeFound || BarcodeSignature.hasVerticalBars(matrix);
+        boolean horizontalBars = strategy.isOneDimensionalPossible() && BarcodeSignature.hasHorizontalBars(matrix);
+        if (!verticalBars && !horizontalBars) {
+            return detectedBarcode;
+        }
+        log.debug("Image " + imageName + " plausibly contains a barcode, decoding it with more effort");
+        if (metrics != null) {
+            metrics.addEscalation();
+        }
+        LuminanceSource source = binarizer.getLuminanceSource();
+        if (verticalBars) {
+            detectedBarcode = decode(imageName, bm, hardHints);
+        }
+        if (detectedBarcode.isEmpty() && horizontalBars && strategy.isRotate()) {
+            detectedBarcode = decode(imageName, new BinaryBitmap(binarizer.createBinarizer(rotate(source))), hardHints);
+        }
+        if (detectedBarcode.isEmpty() && strategy.isInvert()) {
+            detectedBarcode = decode(imageName, new BinaryBitmap(binarizer.createBinarizer(source.invert())), hardHints);
+        }
+        return detectedBarcode;
+    }
+
+    /**
+     * Checks if one or more barcodes are to be read and calls the appropriate method with the given hints
+     *
+     * @param imageName
+     * @param bm
+     * @param hints
+     * @return
+     */
+    private List<Result> decode(String imageName, BinaryBitmap bm, Map<DecodeHintType, Object> hints) {
+        return decodeBarcodes(imageName, bm, hints == fastHints ? fastEngine : hardEngine);
+    }
+
+    /**
+     * Rotates the image by 90 degrees counterclockwise into the rotation buffer of the context, the luminance sources created by
+     * {@link PageImageLoader} do not support rotation
+     *
+     * @param source
+     * @return
+     */
+    private LuminanceSource rotate(LuminanceSource source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        byte[] matrix = source.getMatrix();
+        byte[] rotated = context.getBuffer(Slot.ROTATED, width * height);
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                rotated[(width - 1 - x) * height + y] = matrix[offset + x];
+            }
+        }
+        return context.getSource(Slot.ROTATED, height, width);
+    }
+
+    /**
+     * Searches for barcodes in bm using the passed engine, all barcodes are returned if there might be more than one per image
+     *
+     * @param fileName
+     * @param bm
+     * @param engine
+     * @return
+     */
+    private List<Result> decodeBarcodes(String fileName, BinaryBitmap bm, DecoderEngine engine) {
+        try {
+            return new ArrayList<>(engine.decode(bm, hasMultipleBarcodes));
+        } catch (NotFoundException e) {
+            log.debug("No barcode found on image " + fileName);
+            if (metrics != null) {
+                metrics.addNotFound();
+            }
+        } catch (FormatException e) {
+            log.debug("Found barcode on image " + fileName + " but it did not conform to configured characteristics");
+            unreadableCodeFound = true;
+            if (metrics != null) {
+                metrics.addFormatError();
+            }
+        } catch (ChecksumException e) {
+            log.debug("Found barcode on image " + fileName + " but its checksum did not match");
+            unreadableCodeFound = true;
+            if (metrics != null) {
+                metrics.addChecksumError();
+            }
+        }
+        return new ArrayList<>();
+    }
+}
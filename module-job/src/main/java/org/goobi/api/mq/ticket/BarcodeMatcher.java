@@ -0,0 +1,169 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the structure element for the content of a barcode. Besides single codes, rules can match all codes with a common prefix, a range of codes
+ * or a regular expression. Single codes are looked up in a hash table and prefixes in a trie, so both lookups only depend on the length of the
+ * code, not on the number of configured codes.
+ *
+ * If several rules match, single codes win over prefixes, the longest prefix wins over shorter ones, prefixes win over ranges and ranges over
+ * regular expressions. Ranges are kept sorted and must not overlap, so a code is compared with a single range. Regular expressions are tested one
+ * by one in configuration order, so their cost grows with their number; long lists of codes should use single codes, prefixes or ranges instead.
+ */
+public class BarcodeMatcher {
+
+    /**
+     * Orders codes of different length by their length first, so ranges of numbers work without leading zeros
+     */
+    private static final Comparator<String> CODE_ORDER = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
+    private static class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private String docstruct;
+    }
+
+    private static class Range {
+        private final String to;
+        private final String docstruct;
+
+        private Range(String to, String docstruct) {
+            this.to = to;
+            this.docstruct = docstruct;
+        }
+    }
+
+    private static class PatternRule {
+        private final Pattern pattern;
+        private final String docstruct;
+
+        private PatternRule(Pattern pattern, String docstruct) {
+            this.pattern = pattern;
+            this.docstruct = docstruct;
+        }
+    }
+
+    private final Map<String, String> codes = new HashMap<>();
+    private final TrieNode prefixes = new TrieNode();
+    private final TreeMap<String, Range> ranges = new TreeMap<>(CODE_ORDER);
+    private final List<PatternRule> patterns = new ArrayList<>();
+    private final Set<String> docstructs = new LinkedHashSet<>();
+    private boolean hasPrefixes;
+
+    /**
+     * Adds a single code
+     *
+     * @param code
+     * @param docstruct
+     */
+    public void addCode(String code, String docstruct) {
+        codes.put(code, docstruct);
+        docstructs.add(docstruct);
+    }
+
+    /**
+     * Adds a rule matching all codes starting with prefix
+     *
+     * @param prefix
+     * @param docstruct
+     */
+    public void addPrefix(String prefix, String docstruct) {
+        TrieNode node = prefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+        }
+        node.docstruct = docstruct;
+        hasPrefixes = true;
+        docstructs.add(docstruct);
+    }
+
+    /**
+     * Adds a rule matching all codes from from to to, both included. Shorter codes are ordered before longer ones, codes of the same length are
+     * compared character by character. Ranges must not overlap.
+     *
+     * @param from
+     * @param to
+     * @param docstruct
+     * @throws IllegalArgumentException if from is after to or the range overlaps a range added before
+     */
+    public void addRange(String from, String to, String docstruct) {
+        if (CODE_ORDER.compare(from, to) > 0) {
+            throw new IllegalArgumentException("Range " + from + " - " + to + " is empty");
+        }
+        // the ranges don't overlap, so only the last one starting before the end of the new range can overlap it
+        Map.Entry<String, Range> previous = ranges.floorEntry(to);
+        if (previous != null && CODE_ORDER.compare(previous.getValue().to, from) >= 0) {
+            throw new IllegalArgumentException(
+                    "Range " + from + " - " + to + " overlaps range " + previous.getKey() + " - " + previous.getValue().to);
+        }
+        ranges.put(from, new Range(to, docstruct));
+        docstructs.add(docstruct);
+    }
+
+    /**
+     * Adds a rule matching all codes which match the regular expression completely. The expressions are tested one after another in the order they
+     * were added.
+     *
+     * @param regex
+     * @param docstruct
+     */
+    public void addPattern(String regex, String docstruct) {
+        patterns.add(new PatternRule(Pattern.compile(regex), docstruct));
+        docstructs.add(docstruct);
+    }
+
+    /**
+     * Returns the structure element for the code
+     *
+     * @param code
+     * @return the name of the structure element or null, if no rule matches
+     */
+    public String match(String code) {
+        String docstruct = codes.get(code);
+        if (docstruct != null) {
+            return docstruct;
+        }
+        if (hasPrefixes) {
+            TrieNode node = prefixes;
+            for (int i = 0; i < code.length() && node != null; i++) {
+                node = node.children.get(code.charAt(i));
+                if (node != null && node.docstruct != null) {
+                    docstruct = node.docstruct;
+                }
+            }
+            if (docstruct != null) {
+                return docstruct;
+            }
+        }
+        if (!ranges.isEmpty()) {
+            Map.Entry<String, Range> range = ranges.floorEntry(code);
+            if (range != null && CODE_ORDER.compare(code, range.getValue().to) <= 0) {
+                return range.getValue().docstruct;
+            }
+        }
+        for (PatternRule rule : patterns) {
+            if (rule.pattern.matcher(code).matches()) {
+                return rule.docstruct;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names of all structure elements used by the rules
+     *
+     * @return
+     */
+    public Collection<String> getDocstructs() {
+        return docstructs;
+    }
+}
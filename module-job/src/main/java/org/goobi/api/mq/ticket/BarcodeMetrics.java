@@ -0,0 +1,352 @@
+package org.goobi.api.mq.ticket;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Collects timings and counters of a single barcode ticket. All methods are thread safe, so the metrics can be shared by all decoding threads of
+ * the ticket.
+ */
+public class BarcodeMetrics {
+
+    /**
+     * The phases of a ticket, the time spent in each phase is summed up over all images and threads
+     */
+    public enum Phase {
+        METADATA_READ,
+        PREFILTER,
+        STORAGE_READ,
+        ADMISSION_WAIT,
+        IMAGE_DECODE,
+        BINARIZATION,
+        BARCODE_DECODE,
+        METADATA_WRITE
+    }
+
+    /**
+     * Upper bounds of the buckets of the per image latency histogram in milliseconds, the last bucket contains all slower images
+     */
+    private static final long[] LATENCY_BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+    private final long startTime = System.nanoTime();
+    private volatile long duration = -1;
+
+    private final Map<Phase, LongAdder> phaseTimes = new EnumMap<>(Phase.class);
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+    private final LongAdder imageLatency = new LongAdder();
+
+    private final LongAdder images = new LongAdder();
+    private final LongAdder imagesWithBarcode = new LongAdder();
+    private final LongAdder imagesWithoutBarcode = new LongAdder();
+    private final LongAdder imagesNotSampled = new LongAdder();
+    private final LongAdder barcodes = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+    private final LongAdder downscaled = new LongAdder();
+    private final LongAdder prefilterRejected = new LongAdder();
+    private final LongAdder prefilterFalseNegatives = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder formatErrors = new LongAdder();
+    private final LongAdder checksumErrors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAccumulator peakHeap = new LongAccumulator(Math::max, 0);
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder allocationSamples = new LongAdder();
+    private volatile long structureHeap;
+    private volatile int structurePages;
+
+    public BarcodeMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseTimes.put(phase, new LongAdder());
+        }
+    }
+
+    public void addTime(Phase phase, long nanos) {
+        phaseTimes.get(phase).add(nanos);
+    }
+
+    public long getTime(Phase phase) {
+        return phaseTimes.get(phase).sum();
+    }
+
+    /**
+     * Records the total time needed to detect the barcodes of one image
+     *
+     * @param nanos
+     * @param barcodeCount number of detected barcodes
+     */
+    public void addImage(long nanos, int barcodeCount) {
+        images.increment();
+        barcodes.add(barcodeCount);
+        if (barcodeCount > 0) {
+            imagesWithBarcode.increment();
+        } else {
+            imagesWithoutBarcode.increment();
+        }
+        imageLatency.add(nanos);
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Counts images which were not decoded because of the sampling policy
+     *
+     * @param count
+     */
+    public void addImagesNotSampled(int count) {
+        imagesNotSampled.add(count);
+    }
+
+    public void addCacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * Counts an image region which was decoded again with more effort after the fast pass found no barcode
+     */
+    public void addEscalation() {
+        escalations.increment();
+    }
+
+    /**
+     * Counts an image which was read at a lower resolution to fit into the memory budget
+     */
+    public void addDownscaled() {
+        downscaled.increment();
+    }
+
+    /**
+     * Counts an image which was rejected by the prefilter
+     */
+    public void addPrefilterRejected() {
+        prefilterRejected.increment();
+    }
+
+    /**
+     * Counts an image which was rejected by the prefilter, but contains barcodes. Only detected in verify mode.
+     */
+    public void addPrefilterFalseNegative() {
+        prefilterFalseNegatives.increment();
+    }
+
+    public void addNotFound() {
+        notFound.increment();
+    }
+
+    public void addFormatError() {
+        formatErrors.increment();
+    }
+
+    public void addChecksumError() {
+        checksumErrors.increment();
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Returns the heap currently used by the JVM. The value includes garbage not collected yet and the memory used by other tickets, so it is only
+     * an approximation of the memory needed by this ticket.
+     *
+     * @return
+     */
+    public static long getUsedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far, the difference of two calls is the memory allocated in between
+     *
+     * @return the bytes or -1, if the JVM does not measure the allocation of the thread
+     */
+    public static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof ThreadMXBean) {
+            ThreadMXBean allocationBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationBean.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the memory allocated by the thread while an image was decoded
+     *
+     * @param start the value of {@link #getAllocatedBytes()} before the image was decoded
+     */
+    public void addAllocation(long start) {
+        long end = getAllocatedBytes();
+        // virtual threads are not measured
+        if (start >= 0 && end >= start) {
+            allocatedBytes.add(end - start);
+            allocationSamples.increment();
+        }
+    }
+
+    /**
+     * Records the current heap usage, the highest value is reported as peak heap
+     */
+    public void sampleHeap() {
+        peakHeap.accumulate(getUsedHeap());
+    }
+
+    /**
+     * Records the heap growth while the pages and structure elements were created
+     *
+     * @param bytes
+     * @param pages number of created pages
+     */
+    public void addStructureHeap(long bytes, int pages) {
+        structureHeap = bytes;
+        structurePages = pages;
+    }
+
+    /**
+     * Marks the end of the ticket
+     */
+    public void finish() {
+        duration = System.nanoTime() - startTime;
+    }
+
+    public long getDuration() {
+        return duration < 0 ? System.nanoTime() - startTime : duration;
+    }
+
+    public long getImages() {
+        return images.sum();
+    }
+
+    public long getImagesWithBarcode() {
+        return imagesWithBarcode.sum();
+    }
+
+    public long getImagesWithoutBarcode() {
+        return imagesWithoutBarcode.sum();
+    }
+
+    public long getImagesNotSampled() {
+        return imagesNotSampled.sum();
+    }
+
+    public long getBarcodes() {
+        return barcodes.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getEscalations() {
+        return escalations.sum();
+    }
+
+    public long getDownscaled() {
+        return downscaled.sum();
+    }
+
+    public long getPrefilterRejected() {
+        return prefilterRejected.sum();
+    }
+
+    public long getPrefilterFalseNegatives() {
+        return prefilterFalseNegatives.sum();
+    }
+
+    public long getNotFound() {
+        return notFound.sum();
+    }
+
+    public long getFormatErrors() {
+        return formatErrors.sum();
+    }
+
+    public long getChecksumErrors() {
+        return checksumErrors.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getImageLatency() {
+        return imageLatency.sum();
+    }
+
+    public long getPeakHeap() {
+        return peakHeap.get();
+    }
+
+    /**
+     * Returns the average memory allocated while an image was decoded
+     *
+     * @return
+     */
+    public long getAllocationPerImage() {
+        long samples = allocationSamples.sum();
+        return samples == 0 ? 0 : allocatedBytes.sum() / samples;
+    }
+
+    /**
+     * Returns the heap growth per page while the pages and structure elements were created
+     *
+     * @return
+     */
+    public long getStructureHeapPerPage() {
+        return structurePages == 0 ? 0 : Math.max(0, structureHeap) / structurePages;
+    }
+
+    /**
+     * Returns a summary of all metrics as JSON object, times are given in milliseconds
+     *
+     * @return
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"durationMs\":").append(getDuration() / 1000000);
+        json.append(",\"phasesMs\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phase.name().toLowerCase()).append("\":").append(getTime(phase) / 1000000);
+        }
+        json.append("},\"images\":").append(getImages());
+        json.append(",\"imagesWithBarcode\":").append(getImagesWithBarcode());
+        json.append(",\"imagesWithoutBarcode\":").append(getImagesWithoutBarcode());
+        json.append(",\"imagesNotSampled\":").append(getImagesNotSampled());
+        json.append(",\"barcodes\":").append(getBarcodes());
+        json.append(",\"cacheHits\":").append(getCacheHits());
+        json.append(",\"escalations\":").append(getEscalations());
+        json.append(",\"imagesDownscaled\":").append(getDownscaled());
+        json.append(",\"prefilterRejected\":").append(getPrefilterRejected());
+        json.append(",\"prefilterFalseNegatives\":").append(getPrefilterFalseNegatives());
+        json.append(",\"notFound\":").append(getNotFound());
+        json.append(",\"formatErrors\":").append(getFormatErrors());
+        json.append(",\"checksumErrors\":").append(getChecksumErrors());
+        json.append(",\"bytesRead\":").append(getBytesRead());
+        json.append(",\"peakHeapMb\":").append(getPeakHeap() / (1024 * 1024));
+        json.append(",\"allocationPerImageKb\":").append(getAllocationPerImage() / 1024);
+        json.append(",\"structureHeapPerPageKb\":").append(getStructureHeapPerPage() / 1024);
+        json.append(",\"imageLatencyMs\":{");
+        for (int bucket = 0; bucket < latencyHistogram.length(); bucket++) {
+            if (bucket > 0) {
+                json.append(',');
+            }
+            String bound = bucket < LATENCY_BUCKETS.length ? "le" + LATENCY_BUCKETS[bucket] : "gt" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1];
+            json.append('"').append(bound).append("\":").append(latencyHistogram.get(bucket));
+        }
+        json.append("}}");
+        return json.toString();
+    }
+}
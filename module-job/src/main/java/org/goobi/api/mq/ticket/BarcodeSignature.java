@@ -0,0 +1,235 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Cheap checks whether a binarized page may contain a barcode. The bars of a one dimensional barcode are long straight lines, so the barcode shows
+ * up as a dense stretch of black/white transitions which is identical in several rows some distance apart. Text is too low and too irregular to
+ * produce such a stretch, the lines of a text block are too far apart and blank pages have no transitions at all. QR codes are recognized by their
+ * finder patterns.
+ */
+final class BarcodeSignature {
+
+    /**
+     * Default minimal number of transitions in a coherent stretch, a short CODE_128 code has about 30 transitions, EAN_13 has 59
+     */
+    static final int MIN_TRANSITIONS = 20;
+
+    /**
+     * Distance of the compared rows relative to the longer side of the page, about 6 mm on an A4 page
+     */
+    private static final int ROW_DISTANCE_DIVISOR = 50;
+
+    /**
+     * Maximal length of a stretch with {@link #MIN_TRANSITIONS} transitions in multiples of the row distance, about 30 mm on an A4 page. This is
+     * enough for an EAN_13 code printed at 200 %, but less than ten lines of text. The length grows in proportion, if more transitions are required.
+     */
+    private static final int MAX_STRETCH = 5;
+
+    /**
+     * Number of differing pixels that are tolerated within a stretch, binarization shifts the edges of the bars by a pixel or two
+     */
+    private static final int MAX_MISMATCH = 2;
+
+    /**
+     * Minimal number of confirmed finder patterns, a QR code has three
+     */
+    private static final int MIN_FINDER_PATTERNS = 2;
+
+    private BarcodeSignature() {
+    }
+
+    /**
+     * Checks if the image contains a stretch of vertical bars, like an upright barcode
+     *
+     * @param matrix
+     * @return
+     */
+    static boolean hasVerticalBars(BitMatrix matrix) {
+        return hasBars(matrix, false, MIN_TRANSITIONS);
+    }
+
+    /**
+     * Checks if the image contains a stretch of vertical bars with at least the given number of transitions
+     *
+     * @param matrix
+     * @param minTransitions
+     * @return
+     */
+    static boolean hasVerticalBars(BitMatrix matrix, int minTransitions) {
+        return hasBars(matrix, false, minTransitions);
+    }
+
+    /**
+     * Checks if the image contains a stretch of horizontal bars, like a barcode rotated by 90 degrees
+     *
+     * @param matrix
+     * @return
+     */
+    static boolean hasHorizontalBars(BitMatrix matrix) {
+        return hasBars(matrix, true, MIN_TRANSITIONS);
+    }
+
+    /**
+     * Checks if the image contains a stretch of horizontal bars with at least the given number of transitions
+     *
+     * @param matrix
+     * @param minTransitions
+     * @return
+     */
+    static boolean hasHorizontalBars(BitMatrix matrix, int minTransitions) {
+        return hasBars(matrix, true, minTransitions);
+    }
+
+    private static boolean hasBars(BitMatrix matrix, boolean transposed, int minTransitions) {
+        int length = transposed ? matrix.getHeight() : matrix.getWidth();
+        int lines = transposed ? matrix.getWidth() : matrix.getHeight();
+        int distance = Math.max(2, Math.max(length, lines) / ROW_DISTANCE_DIVISOR);
+        int maxStretch = distance * MAX_STRETCH * minTransitions / MIN_TRANSITIONS;
+        int step = Math.max(1, distance / 2);
+        // positions of the last transitions, used as ring buffer
+        int[] transitionPositions = new int[minTransitions];
+        for (int line = 0; line + distance < lines; line += step) {
+            int middle = line + distance / 2;
+            int other = line + distance;
+            int transitions = 0;
+            int mismatch = 0;
+            boolean previous = get(matrix, 0, line, transposed);
+            for (int pos = 1; pos < length; pos++) {
+                boolean current = get(matrix, pos, line, transposed);
+                if (current != get(matrix, pos, middle, transposed) || current != get(matrix, pos, other, transposed)) {
+                    if (++mismatch > MAX_MISMATCH) {
+                        transitions = 0;
+                    }
+                } else {
+                    mismatch = 0;
+                    if (current != previous) {
+                        int index = transitions % minTransitions;
+                        if (transitions >= minTransitions && pos - transitionPositions[index] <= maxStretch) {
+                            return true;
+                        }
+                        transitionPositions[index] = pos;
+                        transitions++;
+                    }
+                }
+                previous = current;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the image contains the finder patterns of a QR code, squares with the typical 1:1:3:1:1 ratio of black and white modules in both
+     * directions. The modules must be at least one pixel wide.
+     *
+     * @param matrix
+     * @return
+     */
+    static boolean hasFinderPatterns(BitMatrix matrix) {
+        int width = matrix.getWidth();
+        int height = matrix.getHeight();
+        List<int[]> found = new ArrayList<>();
+        int[] runs = new int[5];
+        for (int y = 0; y < height; y += 2) {
+            Arrays.fill(runs, 0);
+            int state = 0;
+            for (int x = 0; x < width; x++) {
+                boolean black = matrix.get(x, y);
+                // even states count black runs, odd states white runs
+                if (black == (state % 2 == 0)) {
+                    runs[state]++;
+                } else if (state < 4) {
+                    if (state == 0 && runs[0] == 0) {
+                        continue;
+                    }
+                    runs[++state]++;
+                } else {
+                    if (isFinderRatio(runs)) {
+                        int total = runs[0] + runs[1] + runs[2] + runs[3] + runs[4];
+                        int centerX = x - runs[4] - runs[3] - runs[2] / 2;
+                        if (isVerticalFinderRatio(matrix, centerX, y, total) && isNewPattern(found, centerX, y, total)) {
+                            found.add(new int[] { centerX, y, total });
+                            if (found.size() >= MIN_FINDER_PATTERNS) {
+                                return true;
+                            }
+                        }
+                    }
+                    // shift by two runs, the last black run starts the next candidate
+                    runs[0] = runs[2];
+                    runs[1] = runs[3];
+                    runs[2] = runs[4];
+                    runs[3] = 1;
+                    runs[4] = 0;
+                    state = 3;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFinderRatio(int[] runs) {
+        int total = 0;
+        for (int run : runs) {
+            if (run == 0) {
+                return false;
+            }
+            total += run;
+        }
+        if (total < 7) {
+            return false;
+        }
+        float moduleSize = total / 7f;
+        float maxVariance = moduleSize / 2f;
+        return Math.abs(moduleSize - runs[0]) < maxVariance && Math.abs(moduleSize - runs[1]) < maxVariance
+                && Math.abs(3f * moduleSize - runs[2]) < 3 * maxVariance && Math.abs(moduleSize - runs[3]) < maxVariance
+                && Math.abs(moduleSize - runs[4]) < maxVariance;
+    }
+
+    private static boolean isVerticalFinderRatio(BitMatrix matrix, int centerX, int centerY, int expectedTotal) {
+        int height = matrix.getHeight();
+        int[] runs = new int[5];
+        int y = centerY;
+        // center run upwards and downwards, then the white and black runs on both sides
+        while (y >= 0 && matrix.get(centerX, y)) {
+            runs[2]++;
+            y--;
+        }
+        y = countRun(matrix, centerX, y, -1, false, runs, 1, expectedTotal);
+        countRun(matrix, centerX, y, -1, true, runs, 0, expectedTotal);
+        y = centerY + 1;
+        while (y < height && matrix.get(centerX, y)) {
+            runs[2]++;
+            y++;
+        }
+        y = countRun(matrix, centerX, y, 1, false, runs, 3, expectedTotal);
+        countRun(matrix, centerX, y, 1, true, runs, 4, expectedTotal);
+        int total = runs[0] + runs[1] + runs[2] + runs[3] + runs[4];
+        return Math.abs(total - expectedTotal) * 2 < expectedTotal && isFinderRatio(runs);
+    }
+
+    private static int countRun(BitMatrix matrix, int x, int start, int direction, boolean black, int[] runs, int index, int maxLength) {
+        int y = start;
+        while (y >= 0 && y < matrix.getHeight() && matrix.get(x, y) == black && runs[index] <= maxLength) {
+            runs[index]++;
+            y += direction;
+        }
+        return y;
+    }
+
+    private static boolean isNewPattern(List<int[]> found, int centerX, int centerY, int total) {
+        for (int[] pattern : found) {
+            if (Math.abs(pattern[0] - centerX) < total && Math.abs(pattern[1] - centerY) < total) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean get(BitMatrix matrix, int pos, int line, boolean transposed) {
+        return transposed ? matrix.get(line, pos) : matrix.get(pos, line);
+    }
+}
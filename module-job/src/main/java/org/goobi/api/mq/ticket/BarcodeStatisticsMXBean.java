@@ -0,0 +1,77 @@
+package org.goobi.api.mq.ticket;
+
+/**
+ * Totals of all barcode tickets run in this JVM, published via JMX
+ */
+public interface BarcodeStatisticsMXBean {
+
+    long getTickets();
+
+    long getImages();
+
+    long getImagesWithBarcode();
+
+    long getBarcodes();
+
+    long getCacheHits();
+
+    long getPrefilterRejected();
+
+    long getPrefilterFalseNegatives();
+
+    long getNotFound();
+
+    long getFormatErrors();
+
+    long getChecksumErrors();
+
+    long getBytesRead();
+
+    long getTicketMillis();
+
+    long getPrefilterMillis();
+
+    long getStorageReadMillis();
+
+    long getImageDecodeMillis();
+
+    long getBinarizationMillis();
+
+    long getBarcodeDecodeMillis();
+
+    long getMetadataMillis();
+
+    /**
+     * Memory currently reserved by the memory admission control, for decoded and prefetched images and the buffers kept by the decoders
+     */
+    long getMemoryReservedBytes();
+
+    /**
+     * Part of the reserved memory used by buffers the decoders keep for the next images
+     */
+    long getMemoryRetainedBytes();
+
+    /**
+     * Number of images currently holding a memory reservation
+     */
+    int getMemoryReservations();
+
+    long getMemoryBudgetBytes();
+
+    /**
+     * Number of images which waited for memory, and the total time they waited
+     */
+    long getAdmissionWaits();
+
+    long getAdmissionWaitMillis();
+
+    /**
+     * Number of images read at a lower resolution to fit into the memory budget
+     */
+    long getImagesDownscaled();
+
+    /**
+     * Average time needed to detect the barcodes of one image
+     */
+    double getAverageImageMillis();
+}
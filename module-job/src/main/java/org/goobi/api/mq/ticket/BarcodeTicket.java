@@ -1,55 +1,60 @@
 package org.goobi.api.mq.ticket;
 
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.EnumMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
 
-import javax.imageio.ImageIO;
-
-import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
-import org.apache.commons.lang.SystemUtils;
+import org.goobi.api.mq.QueueType;
 import org.goobi.api.mq.TaskTicket;
+import org.goobi.api.mq.TicketGenerator;
 import org.goobi.api.mq.TicketHandler;
+import org.goobi.api.mq.ticket.BarcodeConfiguration.StructureRules;
+import org.goobi.api.mq.ticket.BarcodeMetrics.Phase;
+import org.goobi.api.mq.ticket.MemoryAdmission.Reservation;
+import org.goobi.api.mq.ticket.PageImageLoader.StreamOpener;
 import org.goobi.beans.Process;
 import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginReturnValue;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.ChecksumException;
-import com.google.zxing.DecodeHintType;
-import com.google.zxing.FormatException;
-import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.Reader;
 import com.google.zxing.Result;
-import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
-import com.google.zxing.common.HybridBinarizer;
-import com.google.zxing.multi.GenericMultipleBarcodeReader;
-import com.google.zxing.oned.EAN13Reader;
-import com.google.zxing.oned.UPCAReader;
-import com.google.zxing.qrcode.QRCodeReader;
-
-import de.sub.goobi.config.ConfigPlugins;
+
 import de.sub.goobi.helper.CloseStepHelper;
+import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
 import de.sub.goobi.persistence.managers.ProcessManager;
 import de.sub.goobi.persistence.managers.StepManager;
+import jakarta.jms.JMSException;
 import lombok.extern.log4j.Log4j;
 import ugh.dl.ContentFile;
 import ugh.dl.DigitalDocument;
 import ugh.dl.DocStruct;
-import ugh.dl.DocStructType;
 import ugh.dl.Fileformat;
 import ugh.dl.Metadata;
 import ugh.dl.MetadataType;
@@ -77,66 +82,349 @@ import ugh.exceptions.WriteException;
  */
 @Log4j
 public class BarcodeTicket implements TicketHandler<PluginReturnValue> {
-    private static final String LOGICAL_PHYSICAL = "logical_physical";
-    private String title = "intranda_step_barcode_scanner";
 
-    private boolean skipWhenDataExists;
-
-    private boolean docByType;
-
-    private Map<String, String> docstructMapString;
-    private Map<String, String> docstructMapType;
-    private String uuidMetadata;
+    /**
+     * Ticket properties used to split the detection of a large process into shards, set by BarcodeScanner
+     */
+    public static final String PROPERTY_MODE = "barcodeMode";
+    public static final String PROPERTY_SHARD_INDEX = "shardIndex";
+    public static final String PROPERTY_SHARD_COUNT = "shardCount";
+    public static final String PROPERTY_FIRST_IMAGE = "firstImage";
+    public static final String PROPERTY_LAST_IMAGE = "lastImage";
+    public static final String MODE_SHARD = "shard";
+    public static final String MODE_FINALIZE = "finalize";
 
     /**
-     * The reader to be used to find barcodes
+     * Prefix of the files in the process folder which contain the results or the errors of the shard tickets and the lock claimed by the shard
+     * which submits the finalize ticket
      */
-    private Reader reader;
+    private static final String SHARD_FILE_PREFIX = "barcode_shard_";
+    private static final String SHARD_LOCK_FILE_NAME = SHARD_FILE_PREFIX + "finalize.lock";
 
     /**
-     * Contains pairs of barcodes and associated Docstructnames for Structures spanning multiple pages
+     * Ticket properties containing the estimated cost of the ticket and the queue it was submitted to, set by BarcodeScanner
      */
-    private boolean hasMultipleBarcodes = false;
+    public static final String PROPERTY_ESTIMATED_IMAGES = "estimatedImages";
+    public static final String PROPERTY_ESTIMATED_BYTES = "estimatedBytes";
+    public static final String PROPERTY_QUEUE = "barcodeQueue";
+
+    private static final String LOGICAL_PHYSICAL = "logical_physical";
+
+    private String title = "intranda_step_barcode_scanner";
+
     /**
-     * This Map contains barcodes and the names of DocStruct elements which will create structure elements spanning multiple pages
+     * The state of a single ticket. It is created for every ticket and passed to the methods processing it, so nothing is carried over to the next
+     * ticket and tickets handled at the same time by this handler don't share it.
      */
-    private Map<String, String> multiPageDocstructMapString;
-    private Map<String, String> multiPageDocstructMapType;
+    private static class TicketState {
+        private boolean skipWhenDataExists;
+
+        private boolean docByType;
+
+        private BarcodeMatcher docstructMatcher;
+        private Map<String, String> docstructMapType;
+        private String uuidMetadata;
+
+        /**
+         * The decoder engines used to find barcodes for the top structure element of the process, see {@link DecoderEngines#create(String, Map)}
+         */
+        private String readerName;
+
+        /**
+         * Number of threads used to decode the images of a process, 1 decodes all images sequentially in the ticket thread
+         */
+        private int decodeThreads;
+
+        /**
+         * Contains pairs of barcodes and associated Docstructnames for Structures spanning multiple pages
+         */
+        private boolean hasMultipleBarcodes;
+        /**
+         * This matcher contains barcodes and the names of DocStruct elements which will create structure elements spanning multiple pages
+         */
+        private BarcodeMatcher multiPageDocstructMatcher;
+        private Map<String, String> multiPageDocstructMapType;
+
+        /**
+         * Areas of the page which are searched for barcodes before the whole page is decoded
+         */
+        private List<ScanRegion> scanRegions;
+
+        /**
+         * Subsampling factors used to read the images, in the order they are tried. The last entry is always 1, the full resolution.
+         */
+        private List<Integer> subsamplingSteps;
+
+        /**
+         * Name of an image folder with smaller derivatives of the master images, which is searched for barcodes before the master
+         */
+        private String derivativeFolder;
+
+        /**
+         * If this is set, every image of a multipage TIFF file gets its own page
+         */
+        private boolean multipageFiles;
+
+        /**
+         * Name of the page metadata containing the number of the image in its file for pages of multipage files
+         */
+        private String frameMetadata;
+
+        /**
+         * If this is set, the detected barcodes of each image are stored in the process folder and reused as long as the image does not change
+         */
+        private boolean useDecodeCache;
+
+        /**
+         * If this is set, existing pages of unchanged images are kept and only added or changed images are decoded and get new pages. Requires the
+         * decode cache to recognize changed images.
+         */
+        private boolean incremental;
+
+        /**
+         * Describes all settings which influence the decoding result, cached results are only used if they were decoded with the same settings
+         */
+        private String decodeSettings;
+
+        /**
+         * The decoding effort and the formats searched for
+         */
+        private DecodeStrategy decodeStrategy;
+
+        /**
+         * Skips pages without barcode signature, null if all pages are decoded
+         */
+        private PagePrefilter prefilter;
+
+        /**
+         * Decides which images are decoded at all, null if all images are decoded
+         */
+        private PageSampler sampler;
+
+        /**
+         * Number of images and megabytes read ahead while other images are decoded, 0 images disables the prefetching
+         */
+        private int prefetchImages;
+        private int prefetchMegabytes;
+
+        /**
+         * If this is set, each image is read and decoded in its own virtual thread, decodeThreads limits the number of concurrent decodes
+         */
+        private boolean useVirtualThreads;
+        private int virtualThreadReads;
+        private int virtualThreadMegabytes;
+
+        /**
+         * Timings and counters of the ticket
+         */
+        private final BarcodeMetrics metrics = new BarcodeMetrics();
+
+        /**
+         * The pages of the process and the files containing them
+         */
+        private PageSource pageSource;
+
+        /**
+         * Type of the page metadata containing the number of the image in its file in the ruleset of the process
+         */
+        private MetadataType frameType;
+
+        /**
+         * The derivative folder of the process and the base names of all images in it with their file names
+         */
+        private String derivativeFoldername;
+        private Map<String, String> derivativeImages = new HashMap<>();
+
+        private DecodeResultCache decodeCache;
+
+        /**
+         * Number of decoded images after which the decode cache is saved, 0 saves it only when all images are decoded, and the number of images
+         * decoded so far
+         */
+        private int checkpointInterval;
+        private final AtomicInteger decodedImages = new AtomicInteger();
+
+        /**
+         * Results of the shard tickets of the process, only used by the finalize ticket
+         */
+        private List<DecodeResultCache> shardResults = new ArrayList<>();
+
+        private ImagePrefetcher prefetcher;
+
+        /**
+         * Images read into memory by the virtual threads, before they are decoded
+         */
+        private final Map<Path, byte[]> preloadedImages = new ConcurrentHashMap<>();
+
+        /**
+         * All decoders of the ticket, their buffers are released at the end of the ticket
+         */
+        private final List<BarcodeDecoder> createdDecoders = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * Closes the page source and releases the buffers of all decoders
+         */
+        private void close() {
+            if (pageSource != null) {
+                pageSource.close();
+            }
+            synchronized (createdDecoders) {
+                for (BarcodeDecoder decoder : createdDecoders) {
+                    decoder.close();
+                }
+                createdDecoders.clear();
+            }
+        }
+    }
 
     @Override
     public PluginReturnValue call(TaskTicket ticket) {
         log.info("Barcode ticket for " + ticket.getProcessName());
 
         Process process = ProcessManager.getProcessById(ticket.getProcessId());
-        Prefs prefs = process.getRegelsatz().getPreferences();
+        if (exceedsFastQueue(ticket)) {
+            return moveToSlowQueue(ticket);
+        }
+        return processTicket(ticket, process);
+    }
+
+    /**
+     * Checks if the ticket was submitted to the fast queue, but its estimated cost exceeds the limits of the fast queue configured for this worker
+     *
+     * @param ticket
+     * @return
+     */
+    private boolean exceedsFastQueue(TaskTicket ticket) {
+        Map<String, String> properties = ticket.getProperties();
+        if (properties == null || !QueueType.FAST_QUEUE.name().equals(properties.get(PROPERTY_QUEUE))) {
+            return false;
+        }
+        BarcodeConfiguration config = BarcodeConfiguration.getInstance(title);
+        try {
+            long estimatedImages = Long.parseLong(properties.getOrDefault(PROPERTY_ESTIMATED_IMAGES, "0"));
+            long estimatedBytes = Long.parseLong(properties.getOrDefault(PROPERTY_ESTIMATED_BYTES, "0"));
+            return config.getFastQueueMaxImages() > 0 && estimatedImages > config.getFastQueueMaxImages()
+                    || config.getFastQueueMaxMegabytes() > 0 && estimatedBytes > config.getFastQueueMaxMegabytes() * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Submits the ticket again to the slow queue, so it does not block small processes in the fast queue
+     *
+     * @param ticket
+     * @return
+     */
+    private PluginReturnValue moveToSlowQueue(TaskTicket ticket) {
+        log.info("Barcode ticket for " + ticket.getProcessName() + " exceeds the limits of the fast queue, moving it to the slow queue");
+        TaskTicket slowTicket = TicketGenerator.generateSimpleTicket(getTicketHandlerName());
+        slowTicket.setProcessId(ticket.getProcessId());
+        slowTicket.setProcessName(ticket.getProcessName());
+        slowTicket.setStepId(ticket.getStepId());
+        slowTicket.setStepName(ticket.getStepName());
+        slowTicket.getProperties().putAll(ticket.getProperties());
+        slowTicket.getProperties().put(PROPERTY_QUEUE, QueueType.SLOW_QUEUE.name());
+        try {
+            TicketGenerator.submitInternalTicket(slowTicket, QueueType.SLOW_QUEUE, getTicketHandlerName(), ticket.getProcessId());
+        } catch (JMSException e) {
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+        return PluginReturnValue.FINISH;
+    }
+
+    /**
+     * Creates the state of the ticket, processes it and reports its metrics
+     *
+     * @param ticket
+     * @param process
+     * @return
+     */
+    private PluginReturnValue processTicket(TaskTicket ticket, Process process) {
+        TicketState state = new TicketState();
+        try {
+            return processTicket(ticket, process, state);
+        } finally {
+            state.close();
+            state.metrics.finish();
+            for (MetricsReporter reporter : getMetricsReporters()) {
+                try {
+                    reporter.report(process, state.metrics);
+                } catch (RuntimeException e) {
+                    log.warn("Unable to report barcode metrics", e);
+                }
+            }
+        }
+    }
 
-        setGlobalFields(process);
+    /**
+     * Detects the barcodes on all images of the process and creates the pagination and the structure elements
+     *
+     * @param ticket
+     * @param process
+     * @param state
+     * @return
+     */
+    private PluginReturnValue processTicket(TaskTicket ticket, Process process, TicketState state) {
+        Prefs prefs = process.getRegelsatz().getPreferences();
 
         DocStruct physical = null;
         DocStruct logical = null;
         List<String> orderedImageNameList = null;
+        // the existing page kept for each image in incremental mode, null if the image needs a new page
+        DocStruct[] keptPages = null;
         Fileformat ff = null;
         DigitalDocument digDoc = null;
         String foldername = null;
+        String mode = ticket.getProperties() == null ? null : ticket.getProperties().get(PROPERTY_MODE);
+        // read mets file, it is only parsed once and used for the configuration lookup as well as for the pagination
+        long metadataReadStart = System.nanoTime();
+        try {
+            ff = process.readMetadataFile();
+            digDoc = ff.getDigitalDocument();
+        } catch (ReadException | PreferencesException | IOException | SwapException e) {
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+        long metadataReadTime = System.nanoTime() - metadataReadStart;
+        state.metrics.addTime(Phase.METADATA_READ, metadataReadTime);
+        log.info(process.getTitel() + ": metadata file read in " + metadataReadTime / 1000000 + " ms");
+        logical = digDoc.getLogicalDocStruct();
+        setGlobalFields(state, logical.getType().getName());
+
         // read image names
         try {
             foldername = process.getImagesOrigDirectory(false);
-            orderedImageNameList = StorageProvider.getInstance().list(foldername);
+            state.pageSource = PageSource.create(foldername, StorageProvider.getInstance().list(foldername), state.multipageFiles);
+            orderedImageNameList = state.pageSource.getPageNames();
             if (orderedImageNameList.isEmpty()) {
                 // abort
                 log.info(process.getTitel() + ": no images found");
                 return PluginReturnValue.ERROR;
             }
+            // the pages of a multipage file refer to the same file, only the metadata tells them apart
+            state.frameType = state.frameMetadata.isEmpty() ? null : prefs.getMetadataTypeByName(state.frameMetadata);
+            if (state.pageSource.hasFrames() && state.frameType == null) {
+                log.error(process.getTitel() + ": the page metadata '" + state.frameMetadata
+                        + "' configured in frameMetadata does not exist, it is needed to store the image numbers of multipage files");
+                return PluginReturnValue.ERROR;
+            }
+            readDerivativeImages(state, process);
+            if (MODE_SHARD.equals(mode)) {
+                // shards run in parallel, so only the finalize ticket writes the decode cache
+                state.checkpointInterval = 0;
+            }
+            if (state.useDecodeCache || state.incremental || state.checkpointInterval > 0) {
+                state.decodeCache =
+                        DecodeResultCache.load(Paths.get(process.getProcessDataDirectory(), DecodeResultCache.CACHE_FILE_NAME), state.decodeSettings);
+            }
         } catch (IOException | SwapException | DAOException e) {
             log.error(e);
             return PluginReturnValue.ERROR;
         }
 
         try {
-            // read mets file
-            ff = process.readMetadataFile();
-            digDoc = ff.getDigitalDocument();
-            logical = digDoc.getLogicalDocStruct();
             if (logical.getType().isAnchor()) {
                 logical = logical.getAllChildren().get(0);
             }
@@ -144,65 +432,108 @@ public class BarcodeTicket implements TicketHandler<PluginReturnValue> {
             // check if pagination was already written
             List<DocStruct> pages = physical.getAllChildren();
             if (pages != null && !pages.isEmpty()) {
-                if (skipWhenDataExists) {
+                if (state.skipWhenDataExists) {
                     return PluginReturnValue.FINISH;
                 }
-                removeExistingData(physical, logical, ff, pages);
+                // shards leave the existing pages to the finalize ticket
+                if (!MODE_SHARD.equals(mode)) {
+                    if (state.incremental) {
+                        keptPages = findKeptPages(state, orderedImageNameList, new ArrayList<>(pages));
+                        removePages(physical, logical, ff, new ArrayList<>(pages), new HashSet<>(Arrays.asList(keptPages)));
+                        int newPageCount = getNewPages(keptPages, orderedImageNameList.size()).size();
+                        log.info(process.getTitel() + ": keeping " + (orderedImageNameList.size() - newPageCount) + " of " + pages.size()
+                                + " existing pages, " + newPageCount + " images need new pages");
+                    } else {
+                        removeExistingData(physical, logical, ff, pages);
+                    }
+                }
             }
 
-        } catch (ReadException | PreferencesException | IOException | SwapException e) {
+        } catch (PreferencesException e) {
             log.error(e);
             return PluginReturnValue.ERROR;
         }
 
-        DocStructType pageType = prefs.getDocStrctTypeByName("page");
-        MetadataType physType = prefs.getMetadataTypeByName("physPageNumber");
-        MetadataType logType = prefs.getMetadataTypeByName("logicalPageNumber");
-        DocStruct currentMultiPageDS = null;
-
-        for (int index = 0; index < orderedImageNameList.size(); index++) {
-            String imageName = orderedImageNameList.get(index);
+        if (MODE_SHARD.equals(mode)) {
+            // only decode a range of images, the metadata is written by the finalize ticket
+            return decodeShard(state, ticket, process, foldername, orderedImageNameList);
+        }
+        state.shardResults = new ArrayList<>();
+        if (MODE_FINALIZE.equals(mode)) {
             try {
-                DocStruct dsPage = digDoc.createDocStruct(pageType);
-
-                ContentFile cf = new ContentFile();
-                if (SystemUtils.IS_OS_WINDOWS) {
-                    cf.setLocation("file:/" + foldername + imageName);
-                } else {
-                    cf.setLocation("file://" + foldername + imageName);
+                int shardCount = Integer.parseInt(ticket.getProperties().get(PROPERTY_SHARD_COUNT));
+                List<String> failures = getShardFailures(process, shardCount);
+                if (!failures.isEmpty()) {
+                    String message =
+                            "Barcode detection failed in " + failures.size() + " of " + shardCount + " shards, " + String.join("; ", failures);
+                    log.error(process.getTitel() + ": " + message);
+                    Helper.addMessageToProcessJournal(process.getId(), LogType.ERROR, message);
+                    deleteShardResults(process);
+                    return PluginReturnValue.ERROR;
                 }
-                dsPage.addContentFile(cf);
-
-                physical.addChild(dsPage);
-                Metadata mdPhysPageNo = new Metadata(physType);
-                mdPhysPageNo.setValue(String.valueOf(index + 1));
-                dsPage.addMetadata(mdPhysPageNo);
+                state.shardResults = loadShardResults(state, process, shardCount);
+            } catch (IOException | SwapException | NumberFormatException e) {
+                log.warn(process.getTitel() + ": unable to load shard results, all images are decoded again", e);
+            }
+        }
 
-                Metadata mdLogicalPageNo = new Metadata(logType);
-                dsPage.addMetadata(mdLogicalPageNo);
-                logical.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+        // try to detect barcodes on all images first, the structure elements are created afterwards in file order
+        List<Integer> newPages = getNewPages(keptPages, orderedImageNameList.size());
+        List<List<Result>> detectedBarcodes = null;
+        try {
+            detectedBarcodes = decodeSampledImages(state, foldername, orderedImageNameList, newPages);
+            if (state.decodeCache != null) {
+                state.decodeCache.save();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read images of process " + process.getTitel(), e);
+            return PluginReturnValue.ERROR;
+        } catch (InterruptedException e) {
+            log.error(e);
+            Thread.currentThread().interrupt();
+            return PluginReturnValue.ERROR;
+        }
 
-                // try to detect barcodes on this image
-                List<Result> detectedBarcode = readBarcodes(process, imageName);
-                if (docByType) {
-                    currentMultiPageDS = generateDocStructsFromType(prefs, logical, digDoc, currentMultiPageDS, imageName, dsPage, detectedBarcode);
-                } else {
-                    currentMultiPageDS = generateDocStructsFromString(prefs, logical, digDoc, currentMultiPageDS, imageName, dsPage, detectedBarcode);
+        StructureBuilder structureBuilder = new StructureBuilder(prefs, digDoc, logical, physical, foldername, state.docByType, state.uuidMetadata,
+                state.docstructMatcher, state.docstructMapType, state.multiPageDocstructMatcher, state.multiPageDocstructMapType);
+        structureBuilder.setFrameType(state.frameType);
+        long heapBeforeStructure = BarcodeMetrics.getUsedHeap();
+        try {
+            for (int i = 0; i < newPages.size(); i++) {
+                int index = newPages.get(i);
+                if (keptPages != null && (i == 0 || newPages.get(i - 1) != index - 1)) {
+                    // the first of consecutive new pages between kept pages, their structure elements follow those of the page before
+                    List<DocStruct> previousPages = index == 0 ? Collections.emptyList() : physical.getAllChildren().subList(0, index);
+                    structureBuilder.continueMultiPageStructure(
+                            previousPages.isEmpty() ? null : getMultiPageStructure(state, logical, previousPages.get(previousPages.size() - 1)));
+                    structureBuilder.insertAt(getStructurePosition(logical, previousPages));
                 }
-            } catch (TypeNotAllowedForParentException | TypeNotAllowedAsChildException | MetadataTypeNotAllowedException
-                    | DocStructHasNoTypeException e) {
-                log.error(e);
-                return PluginReturnValue.ERROR;
-            } catch (IOException | DAOException | InterruptedException | SwapException e) {
-                log.error("Unable to read file " + imageName, e);
-                return PluginReturnValue.ERROR;
+                String imageName = orderedImageNameList.get(index);
+                structureBuilder.addPage(index, imageName, state.pageSource.getFileName(imageName), state.pageSource.getFrameNumber(imageName),
+                        detectedBarcodes.get(i));
             }
+            if (keptPages != null) {
+                structureBuilder.renumberPages();
+            }
+        } catch (TypeNotAllowedForParentException | TypeNotAllowedAsChildException | MetadataTypeNotAllowedException
+                | DocStructHasNoTypeException e) {
+            log.error(e);
+            return PluginReturnValue.ERROR;
         }
+        state.metrics.addStructureHeap(BarcodeMetrics.getUsedHeap() - heapBeforeStructure, newPages.size());
+        state.metrics.sampleHeap();
+        long metadataWriteStart = System.nanoTime();
         try {
             process.writeMetadataFile(ff);
         } catch (WriteException | PreferencesException | IOException | SwapException e) {
             log.error(e);
             return PluginReturnValue.ERROR;
+        } finally {
+            state.metrics.addTime(Phase.METADATA_WRITE, System.nanoTime() - metadataWriteStart);
+            state.metrics.sampleHeap();
+        }
+        if (MODE_FINALIZE.equals(mode)) {
+            deleteShardResults(process);
         }
         //close Step
         Step step = StepManager.getStepById(ticket.getStepId());
@@ -211,314 +542,1010 @@ public class BarcodeTicket implements TicketHandler<PluginReturnValue> {
     }
 
     /**
-     * Reads Configfile and sets global fields accordingly
+     * Detects the barcodes of the image range of a shard ticket and stores them in a shard file in the process folder. If the detection fails, a
+     * failure file is written instead, so the shard counts as completed. The shard which completes the last missing range submits the finalize
+     * ticket, which creates the structure elements from all shard files and closes the step, or reports the failed shards.
+     *
+     * @param state
+     * @param ticket
+     * @param process
+     * @param foldername
+     * @param imageNames
+     * @return
      */
-    private void setGlobalFields(Process process) {
-        String parentStruct = "";
+    private PluginReturnValue decodeShard(TicketState state, TaskTicket ticket, Process process, String foldername, List<String> imageNames) {
+        Map<String, String> properties = ticket.getProperties();
+        int shardIndex;
+        int shardCount;
+        int firstImage;
+        int lastImage;
+        try {
+            shardIndex = Integer.parseInt(properties.get(PROPERTY_SHARD_INDEX));
+            shardCount = Integer.parseInt(properties.get(PROPERTY_SHARD_COUNT));
+            firstImage = Math.min(Integer.parseInt(properties.get(PROPERTY_FIRST_IMAGE)), imageNames.size());
+            lastImage = Math.min(Integer.parseInt(properties.get(PROPERTY_LAST_IMAGE)), imageNames.size());
+        } catch (NumberFormatException e) {
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+        log.info(process.getTitel() + ": decoding shard " + (shardIndex + 1) + " of " + shardCount + ", images " + (firstImage + 1) + " to "
+                + lastImage);
+
+        PluginReturnValue result = PluginReturnValue.FINISH;
+        try {
+            List<String> shardImageNames = imageNames.subList(firstImage, Math.max(firstImage, lastImage));
+            List<List<Result>> detectedBarcodes = decodeSampledImages(state, foldername, imageNames, firstImage, Math.max(firstImage, lastImage));
+            DecodeResultCache shardFile = DecodeResultCache.load(getShardFile(process, shardIndex, shardCount), state.decodeSettings);
+            for (int index = 0; index < shardImageNames.size(); index++) {
+                Path imagePath = state.pageSource.getPath(shardImageNames.get(index));
+                shardFile.put(shardImageNames.get(index), StorageProvider.getInstance().getFileSize(imagePath),
+                        StorageProvider.getInstance().getLastModifiedDate(imagePath), detectedBarcodes.get(index));
+            }
+            shardFile.save();
+        } catch (IOException | SwapException | RuntimeException e) {
+            log.error(process.getTitel() + ": decoding shard " + (shardIndex + 1) + " of " + shardCount + " failed", e);
+            markShardFailed(process, shardIndex, shardCount, e);
+            result = PluginReturnValue.ERROR;
+        } catch (InterruptedException e) {
+            log.error(e);
+            Thread.currentThread().interrupt();
+            markShardFailed(process, shardIndex, shardCount, e);
+            result = PluginReturnValue.ERROR;
+        }
+
         try {
-            parentStruct = process.readMetadataFile().getDigitalDocument().getLogicalDocStruct().getType().getName();
-        } catch (PreferencesException | ReadException | IOException | SwapException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        // read config and set object variables accordingly
-        XMLConfiguration config = ConfigPlugins.getPluginConfig(title);
-        config.setExpressionEngine(new XPathExpressionEngine());
-        skipWhenDataExists = config.getBoolean("/skipWhenDataExists", false);
-        docByType = config.getBoolean("/docStuctByType", false);
-        docstructMapString = new HashMap<>();
-        docstructMapType = new HashMap<>();
-        uuidMetadata = config.getString("/uuidMetadatum");
-        @SuppressWarnings("unchecked")
-        List<HierarchicalConfiguration> itemList = config.configurationsAt("/singlePageStructures/item");
-        for (HierarchicalConfiguration item : itemList) {
-            if (item.getString("@parentStruct").equals(parentStruct)) {
-                docstructMapString.put(item.getString("@barcode"), item.getString("@docstruct"));
-                docstructMapType.put(item.getString("@type"), item.getString("@docstruct"));
-            }
-        }
-        multiPageDocstructMapString = new HashMap<>();
-        multiPageDocstructMapType = new HashMap<>();
-        @SuppressWarnings("unchecked")
-        List<HierarchicalConfiguration> multiPageItemList = config.configurationsAt("/multipageStructure/item");
-        for (HierarchicalConfiguration item : multiPageItemList) {
-            if (item.getString("@parentStruct").equals(parentStruct)) {
-                multiPageDocstructMapString.put(item.getString("@barcode"), item.getString("@docstruct"));
-                multiPageDocstructMapType.put(item.getString("@type"), item.getString("@docstruct"));
-            }
-        }
-        // if this is set true the plugin will look for more than one barcode per image
-        hasMultipleBarcodes = config.getBoolean("/multipleBarcodes");
-        //this is the reader used to decode the barcodes on images
-        switch (config.getString("/reader")) {
-            case ("ean13"):
-                reader = new EAN13Reader();
-            break;
-            case ("UPCA"):
-                reader = new UPCAReader();
-            break;
-            case ("qr"):
-                reader = new QRCodeReader();
-            break;
-            case ("multi"):
-            default:
-                // contains all other readers, slower and more prone to find non existent codes but more versatile
-                reader = new MultiFormatReader();
-        }
-    }
-
-    /**
-     * Checks if one or more barcodes are to be read and calls the appropriate method, compiling the return
+            // submit the finalize ticket, if this was the last missing shard. Failed shards count as completed, so the failure is reported by the
+            // finalize ticket instead of leaving the step waiting
+            for (int index = 0; index < shardCount; index++) {
+                if (!StorageProvider.getInstance().isFileExists(getShardFile(process, index, shardCount))
+                        && !StorageProvider.getInstance().isFileExists(getShardFailureFile(process, index, shardCount))) {
+                    return result;
+                }
+            }
+            if (!claimFinalize(process, shardIndex)) {
+                log.debug(process.getTitel() + ": finalize ticket was already submitted by another shard");
+                return result;
+            }
+            TaskTicket finalizeTicket = TicketGenerator.generateSimpleTicket(getTicketHandlerName());
+            finalizeTicket.setProcessId(ticket.getProcessId());
+            finalizeTicket.setProcessName(ticket.getProcessName());
+            finalizeTicket.setStepId(ticket.getStepId());
+            finalizeTicket.setStepName(ticket.getStepName());
+            finalizeTicket.getProperties().put(PROPERTY_MODE, MODE_FINALIZE);
+            finalizeTicket.getProperties().put(PROPERTY_SHARD_COUNT, String.valueOf(shardCount));
+            TicketGenerator.submitInternalTicket(finalizeTicket, QueueType.SLOW_QUEUE, getTicketHandlerName(), ticket.getProcessId());
+        } catch (IOException | SwapException | JMSException e) {
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+        return result;
+    }
+
+    private static Path getShardFile(Process process, int shardIndex, int shardCount) throws IOException, SwapException {
+        return Paths.get(process.getProcessDataDirectory(), SHARD_FILE_PREFIX + (shardIndex + 1) + "_of_" + shardCount + ".dat");
+    }
+
+    private static Path getShardFailureFile(Process process, int shardIndex, int shardCount) throws IOException, SwapException {
+        return Paths.get(process.getProcessDataDirectory(), SHARD_FILE_PREFIX + (shardIndex + 1) + "_of_" + shardCount + ".failed");
+    }
+
+    /**
+     * Writes the failure file of the shard, containing the error
      *
      * @param process
-     * @param imageName
+     * @param shardIndex
+     * @param shardCount
+     * @param cause
+     */
+    private static void markShardFailed(Process process, int shardIndex, int shardCount, Exception cause) {
+        try (OutputStream out = StorageProvider.getInstance().newOutputStream(getShardFailureFile(process, shardIndex, shardCount))) {
+            out.write(String.valueOf(cause).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | SwapException e) {
+            log.error("Unable to record the failed shard " + (shardIndex + 1) + " of process " + process.getTitel(), e);
+        }
+    }
+
+    /**
+     * Claims the submission of the finalize ticket with the lock file in the process folder. Not every storage can create a file only if it does not
+     * exist yet, so the shard writes its number into the lock file and only submits the ticket if it reads its own number back.
+     *
+     * @param process
+     * @param shardIndex
+     * @return true, if this shard submits the finalize ticket
+     * @throws IOException
+     * @throws SwapException
+     */
+    private static boolean claimFinalize(Process process, int shardIndex) throws IOException, SwapException {
+        StorageProvider storage = StorageProvider.getInstance();
+        Path lockFile = Paths.get(process.getProcessDataDirectory(), SHARD_LOCK_FILE_NAME);
+        if (storage.isFileExists(lockFile)) {
+            return false;
+        }
+        byte[] owner = String.valueOf(shardIndex + 1).getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = storage.newOutputStream(lockFile)) {
+            out.write(owner);
+        }
+        try (InputStream in = storage.newInputStream(lockFile)) {
+            return Arrays.equals(owner, in.readAllBytes());
+        }
+    }
+
+    /**
+     * Returns the errors of the failed shards of the process
+     *
+     * @param process
+     * @param shardCount
+     * @return the error of each failed shard, prefixed with its number
+     * @throws IOException
+     * @throws SwapException
+     */
+    private static List<String> getShardFailures(Process process, int shardCount) throws IOException, SwapException {
+        StorageProvider storage = StorageProvider.getInstance();
+        List<String> failures = new ArrayList<>();
+        for (int index = 0; index < shardCount; index++) {
+            Path failureFile = getShardFailureFile(process, index, shardCount);
+            if (storage.isFileExists(failureFile)) {
+                try (InputStream in = storage.newInputStream(failureFile)) {
+                    failures.add("shard " + (index + 1) + ": " + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return failures;
+    }
+
+    private List<DecodeResultCache> loadShardResults(TicketState state, Process process, int shardCount) throws IOException, SwapException {
+        List<DecodeResultCache> results = new ArrayList<>(shardCount);
+        for (int index = 0; index < shardCount; index++) {
+            results.add(DecodeResultCache.load(getShardFile(process, index, shardCount), state.decodeSettings));
+        }
+        return results;
+    }
+
+    private static void deleteShardResults(Process process) {
+        try {
+            deleteShardFiles(process.getProcessDataDirectory());
+        } catch (IOException | SwapException e) {
+            log.warn("Unable to delete shard files of process " + process.getTitel(), e);
+        }
+    }
+
+    /**
+     * Deletes the shard results and the finalize lock in the process folder, called before new shard tickets are submitted, so the files of a
+     * failed run are not mistaken for results of the new one
+     *
+     * @param processDataDirectory
+     * @throws IOException
+     */
+    public static void deleteShardFiles(String processDataDirectory) throws IOException {
+        StorageProvider storage = StorageProvider.getInstance();
+        for (String fileName : storage.list(processDataDirectory)) {
+            if (fileName.startsWith(SHARD_FILE_PREFIX)) {
+                storage.deleteFile(Paths.get(processDataDirectory, fileName));
+            }
+        }
+    }
+
+    /**
+     * Reads Configfile and sets the fields of the ticket state accordingly
+     *
+     * @param state
+     * @param parentStruct name of the top logical structure element of the process
+     */
+    private void setGlobalFields(TicketState state, String parentStruct) {
+        // read config and set state variables accordingly
+        BarcodeConfiguration config = BarcodeConfiguration.getInstance(title);
+        state.skipWhenDataExists = config.isSkipWhenDataExists();
+        state.docByType = config.isDocByType();
+        state.uuidMetadata = config.getUuidMetadata();
+        state.hasMultipleBarcodes = config.isHasMultipleBarcodes();
+        state.decodeThreads = config.getDecodeThreads();
+        state.subsamplingSteps = config.getSubsamplingSteps();
+        state.derivativeFolder = config.getDerivativeFolder();
+        state.multipageFiles = config.isMultipageFiles();
+        state.frameMetadata = config.getFrameMetadata();
+        state.useDecodeCache = config.isUseDecodeCache();
+        state.incremental = config.isIncremental();
+        state.checkpointInterval = config.getCheckpointInterval();
+        // lookup tables for the top structure element of this process
+        StructureRules rules = config.getRules(parentStruct);
+        state.docstructMatcher = rules.getDocstructMatcher();
+        state.docstructMapType = rules.getDocstructMapType();
+        state.multiPageDocstructMatcher = rules.getMultiPageDocstructMatcher();
+        state.multiPageDocstructMapType = rules.getMultiPageDocstructMapType();
+        state.scanRegions = rules.getScanRegions();
+        state.readerName = rules.getEngine();
+        state.decodeSettings = rules.getDecodeSettings();
+        state.decodeStrategy = rules.getDecodeStrategy();
+        state.prefilter = config.getPrefilter();
+        state.sampler = config.getSampler();
+        state.prefetchImages = config.getPrefetchImages();
+        state.prefetchMegabytes = config.getPrefetchMegabytes();
+        state.useVirtualThreads = config.isUseVirtualThreads();
+        state.virtualThreadReads = config.getVirtualThreadReads();
+        state.virtualThreadMegabytes = config.getVirtualThreadMegabytes();
+        // shared by all tickets of this JVM
+        MemoryAdmission.getInstance()
+                .configure(config.getMemoryBudgetMegabytes(), config.getMemoryAdmissionMode(), config.getMemoryMaxSubsampling());
+    }
+
+    /**
+     * Detects the barcodes of the images from first to last, excluded, which are selected by the sampling policy
+     *
+     * @param state
+     * @param foldername
+     * @param imageNames all images of the process
+     * @param first
+     * @param last
+     * @return the detected barcodes of the images from first to last
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<List<Result>> decodeSampledImages(TicketState state, String foldername, List<String> imageNames, int first, int last)
+            throws IOException, InterruptedException {
+        List<Integer> indexes = new ArrayList<>(Math.max(0, last - first));
+        for (int index = first; index < last; index++) {
+            indexes.add(index);
+        }
+        return decodeSampledImages(state, foldername, imageNames, indexes);
+    }
+
+    /**
+     * Detects the barcodes of the images at the given positions which are selected by the sampling policy. The other images get an empty list, so
+     * their pages are added to the current multipage structure element without being decoded.
+     *
+     * @param state
+     * @param foldername
+     * @param imageNames all images of the process
+     * @param indexes the positions of the images to decode in imageNames, in ascending order
+     * @return the detected barcodes of the images in the order of indexes
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<List<Result>> decodeSampledImages(TicketState state, String foldername, List<String> imageNames, List<Integer> indexes)
+            throws IOException, InterruptedException {
+        boolean[] sampled = new boolean[indexes.size()];
+        List<String> sampledImageNames = new ArrayList<>();
+        for (int i = 0; i < indexes.size(); i++) {
+            sampled[i] = state.sampler == null || state.sampler.isSampled(imageNames, indexes.get(i));
+            if (sampled[i]) {
+                sampledImageNames.add(imageNames.get(indexes.get(i)));
+            }
+        }
+        if (state.sampler == null) {
+            return decodeImages(state, foldername, sampledImageNames);
+        }
+        log.debug("Decoding " + sampledImageNames.size() + " of " + sampled.length + " images, sampling " + state.sampler);
+        state.metrics.addImagesNotSampled(sampled.length - sampledImageNames.size());
+        Iterator<List<Result>> decoded = decodeImages(state, foldername, sampledImageNames).iterator();
+        List<List<Result>> detectedBarcodes = new ArrayList<>(sampled.length);
+        for (boolean isSampled : sampled) {
+            detectedBarcodes.add(isSampled ? decoded.next() : Collections.emptyList());
+        }
+        return detectedBarcodes;
+    }
+
+    /**
+     * Detects the barcodes of all images in foldername. If more than one decode thread is configured, the images are decoded concurrently, each
+     * thread using its own decoder. The returned list contains the detected barcodes in the same order as imageNames.
+     *
+     * @param state
+     * @param foldername
+     * @param imageNames
      * @return
      * @throws IOException
      * @throws InterruptedException
-     * @throws SwapException
-     * @throws DAOException
      */
-    private List<Result> readBarcodes(Process process, String imageName) throws IOException, InterruptedException, SwapException, DAOException {
-        List<Result> detectedBarcode = new ArrayList<>();
-        // needs a wrapper for the reader if there are possibly more than 1 code on the image
-        if (hasMultipleBarcodes) {
-            GenericMultipleBarcodeReader gmbr = new GenericMultipleBarcodeReader(reader);
-            detectedBarcode = decodeMultipleBarcodes(imageName, gmbr, process);
-        } else {
-            Result tmpBarcode = decodeBarcode(imageName, reader, process);
+    private List<List<Result>> decodeImages(TicketState state, String foldername, List<String> imageNames) throws IOException, InterruptedException {
+        if (state.useVirtualThreads && imageNames.size() > 1) {
+            ExecutorService pool = newVirtualThreadExecutor();
+            if (pool != null) {
+                return decodeInVirtualThreads(state, pool, foldername, imageNames);
+            }
+            log.warn("Virtual threads are not supported by this Java version, using platform threads");
+        }
+        if (state.prefetchImages <= 0 || imageNames.size() < 2) {
+            return decodeAll(state, foldername, imageNames);
+        }
+        // only images without known barcodes are read, multipage files are never read as a whole
+        List<Path> paths = new ArrayList<>();
+        for (String imageName : imageNames) {
+            if (!isKnown(state, foldername, imageName) && !state.pageSource.isFrame(imageName)) {
+                paths.add(getPrefetchPath(state, foldername, imageName));
+            }
+        }
+        state.prefetcher = new ImagePrefetcher(state.prefetchImages, state.prefetchMegabytes * 1024L * 1024L, paths);
+        try {
+            return decodeAll(state, foldername, imageNames);
+        } finally {
+            state.prefetcher.close();
+            state.prefetcher = null;
+        }
+    }
 
-            if (tmpBarcode != null) {
-                detectedBarcode.add(tmpBarcode);
+    private List<List<Result>> decodeAll(TicketState state, String foldername, List<String> imageNames) throws IOException, InterruptedException {
+        List<List<Result>> detectedBarcodes = new ArrayList<>(imageNames.size());
+        if (state.decodeThreads <= 1 || imageNames.size() < 2) {
+            BarcodeDecoder decoder = createDecoder(state);
+            for (String imageName : imageNames) {
+                detectedBarcodes.add(detectBarcodes(state, foldername, imageName, decoder));
             }
+            return detectedBarcodes;
         }
-        return detectedBarcode;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(state.decodeThreads, imageNames.size()));
+        ThreadLocal<BarcodeDecoder> decoders = ThreadLocal.withInitial(() -> createDecoder(state));
+        try {
+            List<Future<List<Result>>> futures = new ArrayList<>(imageNames.size());
+            for (String imageName : imageNames) {
+                futures.add(pool.submit(() -> detectBarcodes(state, foldername, imageName, decoders.get())));
+            }
+            collectResults(futures, imageNames, detectedBarcodes);
+        } finally {
+            pool.shutdownNow();
+        }
+        return detectedBarcodes;
     }
 
     /**
-     * Generates the doc struct elements in logical according to the detectedBarcode(s)
+     * Reads and decodes every image in its own virtual thread. Any number of images can be read concurrently, limited by maxReads and by the
+     * memory needed to hold them, but only decodeThreads images are decoded at the same time. Each decoding thread takes one of the decoders from
+     * the queue, so the queue limits the number of concurrent decodes.
      *
-     * @param prefs
-     * @param logical
-     * @param digDoc
-     * @param currentMultiPageDS
-     * @param imageName
-     * @param dsPage
-     * @param detectedBarcode
+     * @param state
+     * @param pool
+     * @param foldername
+     * @param imageNames
      * @return
-     * @throws TypeNotAllowedForParentException
-     * @throws TypeNotAllowedAsChildException
-     * @throws MetadataTypeNotAllowedException
-     */
-    private DocStruct generateDocStructsFromString(Prefs prefs, DocStruct logical, DigitalDocument digDoc, DocStruct currentMultiPageDS,
-            String imageName, DocStruct dsPage, List<Result> detectedBarcode)
-                    throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
-        for (Result barcode : detectedBarcode) {
-            String barcodeString = String.valueOf(barcode);
-            log.debug("Barcode found in image " + imageName + " " + barcodeString);
-            // check if the barcode matches a single page doc struct, if so add it
-            if (docstructMapString.containsKey(barcodeString)) {
-                String docstructName = docstructMapString.get(barcodeString);
-                log.debug("Barcode " + barcodeString + " is associated with doc struct " + docstructName);
-                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
-                if (docStructType == null) {
-                    log.debug("DocStructType " + docstructName + "not found in ruleset");
-                } else {
-                    DocStruct ds = digDoc.createDocStruct(docStructType);
-                    addBarcodeMetadatum(prefs, barcode, ds);
-                    logical.addChild(ds);
-                    ds.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
-                }
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<List<Result>> decodeInVirtualThreads(TicketState state, ExecutorService pool, String foldername, List<String> imageNames)
+            throws IOException, InterruptedException {
+        List<List<Result>> detectedBarcodes = new ArrayList<>(imageNames.size());
+        BlockingQueue<BarcodeDecoder> decoders = new ArrayBlockingQueue<>(state.decodeThreads);
+        for (int i = 0; i < state.decodeThreads; i++) {
+            decoders.add(createDecoder(state));
+        }
+        int memoryLimit = state.virtualThreadMegabytes * 1024;
+        Semaphore reads = new Semaphore(state.virtualThreadReads, true);
+        // permits in kilobytes
+        Semaphore memory = new Semaphore(memoryLimit, true);
+        try {
+            List<Future<List<Result>>> futures = new ArrayList<>(imageNames.size());
+            for (String imageName : imageNames) {
+                futures.add(pool.submit(() -> {
+                    Path path = getPrefetchPath(state, foldername, imageName);
+                    int permits = 0;
+                    Reservation reservation = null;
+                    try {
+                        if (!isKnown(state, foldername, imageName) && !state.pageSource.isFrame(imageName)) {
+                            long size = StorageProvider.getInstance().getFileSize(path);
+                            permits = (int) Math.min(memoryLimit, Math.max(1, size / 1024));
+                            memory.acquire(permits);
+                            reservation = preloadImage(state, path, size, reads);
+                        }
+                        BarcodeDecoder decoder = decoders.take();
+                        try {
+                            return detectBarcodes(state, foldername, imageName, decoder);
+                        } finally {
+                            decoders.add(decoder);
+                        }
+                    } finally {
+                        state.preloadedImages.remove(path);
+                        if (reservation != null) {
+                            reservation.close();
+                        }
+                        memory.release(permits);
+                    }
+                }));
             }
-            // check if the barcode matches a multipage structure, if so generate and add it to the logical structure, pages are added later
-            if (multiPageDocstructMapString.containsKey(barcodeString)) {
-                String docstructName = multiPageDocstructMapString.get(barcodeString);
-                if ("DocStructEnd".equals(docstructName)) {
-                    currentMultiPageDS = null;
-                    continue;
-                }
-                log.debug("Barcode " + barcodeString + " is associated with doc struct " + docstructName);
-                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
-                if (docStructType == null) {
-                    log.debug("DocStructType " + docstructName + "not found in ruleset");
-                } else {
-                    currentMultiPageDS = digDoc.createDocStruct(docStructType);
-                    logical.addChild(currentMultiPageDS);
-                    addBarcodeMetadatum(prefs, barcode, currentMultiPageDS);
+            collectResults(futures, imageNames, detectedBarcodes);
+        } finally {
+            pool.shutdownNow();
+        }
+        return detectedBarcodes;
+    }
+
+    /**
+     * Reads the image into memory, so the decoding does not wait for the storage. If the image cannot be read or does not fit into the memory
+     * budget, it is read again by the decoder.
+     *
+     * @param state
+     * @param path
+     * @param size the size of the file
+     * @param reads limits the number of concurrent reads
+     * @return the memory reserved for the image, it must be closed once the image is decoded; null if the image was not read
+     * @throws InterruptedException
+     */
+    private Reservation preloadImage(TicketState state, Path path, long size, Semaphore reads) throws InterruptedException {
+        Reservation reservation = MemoryAdmission.getInstance().tryReserve(size);
+        if (reservation == null) {
+            return null;
+        }
+        reads.acquire();
+        try (InputStream in = StorageProvider.getInstance().newInputStream(path)) {
+            state.preloadedImages.put(path, in.readAllBytes());
+            return reservation;
+        } catch (IOException e) {
+            log.debug("Unable to preload image " + path, e);
+            reservation.close();
+            return null;
+        } finally {
+            reads.release();
+        }
+    }
+
+    private void collectResults(List<Future<List<Result>>> futures, List<String> imageNames, List<List<Result>> detectedBarcodes)
+            throws IOException, InterruptedException {
+        for (int index = 0; index < futures.size(); index++) {
+            try {
+                detectedBarcodes.add(futures.get(index).get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw new IOException("Unable to read file " + imageNames.get(index), cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
                 }
+                throw new IOException(cause);
             }
         }
-        // if currentMultiPageDS is set, all current pages are meant to belong to that multi page structure, so add this one
-        if (currentMultiPageDS != null) {
-            currentMultiPageDS.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task
+     *
+     * @return the executor or null, if virtual threads are not supported by the JVM
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // available since Java 21, called by reflection to keep the plugin compatible with older runtimes
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
-        return currentMultiPageDS;
     }
 
     /**
-     * Generates the doc struct elements in logical according to the detectedBarcode(s)
+     * Lists the images of the configured derivative folder, so they can be matched with the master images by their base name
      *
-     * @param prefs
-     * @param logical
-     * @param digDoc
-     * @param currentMultiPageDS
+     * @param state
+     * @param process
+     * @throws IOException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    private void readDerivativeImages(TicketState state, Process process) throws IOException, SwapException, DAOException {
+        state.derivativeImages = new HashMap<>();
+        state.derivativeFoldername = null;
+        if (state.derivativeFolder == null || state.derivativeFolder.isEmpty()) {
+            return;
+        }
+        state.derivativeFoldername = process.getConfiguredImageFolder(state.derivativeFolder);
+        if (state.derivativeFoldername == null || !StorageProvider.getInstance().isDirectory(Paths.get(state.derivativeFoldername))) {
+            log.debug(process.getTitel() + ": derivative folder " + state.derivativeFolder + " does not exist, master images are used");
+            return;
+        }
+        for (String derivativeName : StorageProvider.getInstance().list(state.derivativeFoldername)) {
+            state.derivativeImages.put(getBaseName(derivativeName), derivativeName);
+        }
+    }
+
+    private static String getBaseName(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return index > 0 ? fileName.substring(0, index) : fileName;
+    }
+
+    /**
+     * Detects the barcodes of the image and records the time needed in the metrics of the ticket
+     *
+     * @param state
+     * @param foldername
      * @param imageName
-     * @param dsPage
-     * @param detectedBarcode
+     * @param decoder
      * @return
-     * @throws TypeNotAllowedForParentException
-     * @throws TypeNotAllowedAsChildException
-     * @throws MetadataTypeNotAllowedException
-     */
-    private DocStruct generateDocStructsFromType(Prefs prefs, DocStruct logical, DigitalDocument digDoc, DocStruct currentMultiPageDS,
-            String imageName, DocStruct dsPage, List<Result> detectedBarcode)
-                    throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
-        for (Result barcode : detectedBarcode) {
-            String barcodeType = barcode.getBarcodeFormat().toString();
-            log.debug("Barcode found in image " + imageName + " " + barcodeType);
-            // check if the barcode matches a single page doc struct, if so add it
-            if (docstructMapType.containsKey(barcodeType)) {
-                String docstructName = docstructMapType.get(barcodeType);
-                log.debug("Barcode " + barcodeType + " is associated with doc struct " + docstructName);
-                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
-                if (docStructType == null) {
-                    log.debug("DocStructType " + docstructName + "not found in ruleset");
-                } else {
-                    DocStruct ds = digDoc.createDocStruct(docStructType);
-                    addBarcodeMetadatum(prefs, barcode, ds);
-                    logical.addChild(ds);
-                    ds.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
-                }
+     * @throws IOException
+     */
+    private List<Result> detectBarcodes(TicketState state, String foldername, String imageName, BarcodeDecoder decoder) throws IOException {
+        long start = System.nanoTime();
+        long allocationStart = BarcodeMetrics.getAllocatedBytes();
+        try {
+            List<Result> detectedBarcode = findBarcodes(state, foldername, imageName, decoder);
+            state.metrics.addImage(System.nanoTime() - start, detectedBarcode.size());
+            state.metrics.addAllocation(allocationStart);
+            state.metrics.sampleHeap();
+            return detectedBarcode;
+        } finally {
+            if (state.prefetcher != null) {
+                state.prefetcher.release(getPrefetchPath(state, foldername, imageName));
             }
-            // check if the barcode matches a multipage structure, if so generate and add it to the logical structure, pages are added later
-            if (multiPageDocstructMapType.containsKey(barcodeType)) {
-                String docstructName = multiPageDocstructMapType.get(barcodeType);
-                if ("DocStructEnd".equals(docstructName)) {
-                    currentMultiPageDS = null;
-                    continue;
-                }
-                log.debug("Barcode " + barcodeType + " is associated with doc struct " + docstructName);
-                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
-                if (docStructType == null) {
-                    log.debug("DocStructType " + docstructName + "not found in ruleset");
-                } else {
-                    currentMultiPageDS = digDoc.createDocStruct(docStructType);
-                    logical.addChild(currentMultiPageDS);
-                    addBarcodeMetadatum(prefs, barcode, currentMultiPageDS);
-                }
+        }
+    }
+
+    /**
+     * Returns the barcodes of the image from the shard results or the cache, if the image was not changed since it was decoded. Otherwise the image
+     * is decoded and the result is added to the cache.
+     *
+     * @param state
+     * @param foldername
+     * @param imageName
+     * @param decoder
+     * @return
+     * @throws IOException
+     */
+    private List<Result> findBarcodes(TicketState state, String foldername, String imageName, BarcodeDecoder decoder) throws IOException {
+        if (state.decodeCache == null && state.shardResults.isEmpty()) {
+            return searchImage(state, foldername, imageName, decoder);
+        }
+        Path imagePath = state.pageSource.getPath(imageName);
+        long fileSize = StorageProvider.getInstance().getFileSize(imagePath);
+        long lastModified = StorageProvider.getInstance().getLastModifiedDate(imagePath);
+        List<Result> detectedBarcode = getShardBarcodes(state, imageName, fileSize, lastModified);
+        if (detectedBarcode != null) {
+            // the shards don't write the cache, their results are added by the finalize ticket
+            if (state.decodeCache != null) {
+                state.decodeCache.put(imageName, fileSize, lastModified, detectedBarcode);
             }
+            state.metrics.addCacheHit();
+            return detectedBarcode;
         }
-        // if currentMultiPageDS is set, all current pages are meant to belong to that multi page structure, so add this one
-        if (currentMultiPageDS != null) {
-            currentMultiPageDS.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+        detectedBarcode = state.decodeCache == null ? null : state.decodeCache.get(imageName, fileSize, lastModified);
+        if (detectedBarcode != null) {
+            log.debug("Using cached barcodes for image " + imageName);
+            state.metrics.addCacheHit();
+            return detectedBarcode;
+        }
+        detectedBarcode = searchImage(state, foldername, imageName, decoder);
+        if (state.decodeCache != null) {
+            state.decodeCache.put(imageName, fileSize, lastModified, detectedBarcode);
+            checkpoint(state);
+        }
+        return detectedBarcode;
+    }
+
+    /**
+     * Saves the decode cache after every checkpointInterval decoded images, so an interrupted ticket continues with the images decoded afterwards
+     */
+    private void checkpoint(TicketState state) {
+        if (state.checkpointInterval > 0 && state.decodedImages.incrementAndGet() % state.checkpointInterval == 0) {
+            try {
+                state.decodeCache.checkpoint();
+                log.debug("Checkpoint after " + state.decodedImages.get() + " decoded images");
+            } catch (IOException e) {
+                log.warn("Unable to save decoding progress", e);
+            }
         }
-        return currentMultiPageDS;
     }
 
-    private void addBarcodeMetadatum(Prefs prefs, Result barcode, DocStruct ds) throws MetadataTypeNotAllowedException {
-        if (uuidMetadata != null && !uuidMetadata.isEmpty()) {
-            Metadata md = new Metadata(prefs.getMetadataTypeByName(uuidMetadata));
-            md.setValue(barcode.getText());
-            ds.addMetadata(md);
+    /**
+     * Returns the barcodes of the image from the shard results or the cache
+     *
+     * @param state
+     * @param imageName
+     * @param fileSize
+     * @param lastModified
+     * @return the barcodes or null, if the image needs to be decoded
+     */
+    private List<Result> getKnownBarcodes(TicketState state, String imageName, long fileSize, long lastModified) {
+        List<Result> detectedBarcode = getShardBarcodes(state, imageName, fileSize, lastModified);
+        if (detectedBarcode != null) {
+            return detectedBarcode;
         }
+        return state.decodeCache == null ? null : state.decodeCache.get(imageName, fileSize, lastModified);
     }
 
-    private void removeExistingData(DocStruct physical, DocStruct logical, Fileformat ff, List<DocStruct> pages) throws PreferencesException {
-        // process contains data, clear it
-        for (DocStruct page : pages) {
-            ff.getDigitalDocument().getFileSet().removeFile(page.getAllContentFiles().get(0));
-            List<Reference> refs = new ArrayList<>(page.getAllFromReferences());
-            for (ugh.dl.Reference ref : refs) {
-                ref.getSource().removeReferenceTo(page);
+    private List<Result> getShardBarcodes(TicketState state, String imageName, long fileSize, long lastModified) {
+        for (DecodeResultCache shardResult : state.shardResults) {
+            List<Result> detectedBarcode = shardResult.get(imageName, fileSize, lastModified);
+            if (detectedBarcode != null) {
+                return detectedBarcode;
             }
         }
-        while (physical.getAllChildren() != null && !physical.getAllChildren().isEmpty()) {
-            physical.removeChild(physical.getAllChildren().get(0));
+        return null;
+    }
+
+    private boolean isKnown(TicketState state, String foldername, String imageName) {
+        if (state.decodeCache == null && state.shardResults.isEmpty()) {
+            return false;
         }
-        while (logical.getAllChildren() != null && !logical.getAllChildren().isEmpty()) {
-            logical.removeChild(logical.getAllChildren().get(0));
+        Path imagePath = state.pageSource.getPath(imageName);
+        try {
+            StorageProvider storage = StorageProvider.getInstance();
+            return getKnownBarcodes(state, imageName, storage.getFileSize(imagePath), storage.getLastModifiedDate(imagePath)) != null;
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    @Override
-    public String getTicketHandlerName() {
-        return "BarcodeScanner";
+    /**
+     * Returns the file which is read first to search the image, the derivative if one exists
+     *
+     * @param state
+     * @param foldername
+     * @param imageName
+     * @return
+     */
+    private Path getPrefetchPath(TicketState state, String foldername, String imageName) {
+        String derivativeName = getDerivativeName(state, imageName);
+        return derivativeName == null ? state.pageSource.getPath(imageName) : Paths.get(state.derivativeFoldername, derivativeName);
     }
 
     /**
-     * Searches for a barcode on image found at fileName in the image folder of process using passed reader
+     * Returns the derivative of the image, pages of multipage files have no derivative
      *
-     * @param fileName
-     * @param mfr
-     * @param process
+     * @param state
+     * @param imageName
+     * @return the file name in the derivative folder or null
+     */
+    private String getDerivativeName(TicketState state, String imageName) {
+        return state.pageSource.isFrame(imageName) ? null : state.derivativeImages.get(getBaseName(imageName));
+    }
+
+    /**
+     * Checks the image with the prefilter, if configured, and searches it for barcodes. The prefilter uses the derivative of the image, if one
+     * exists. In verify mode rejected images are searched anyway and counted as false negative, if they contain barcodes.
+     *
+     * @param state
+     * @param foldername
+     * @param imageName
+     * @param decoder
+     * @return
+     * @throws IOException
+     */
+    private List<Result> searchImage(TicketState state, String foldername, String imageName, BarcodeDecoder decoder) throws IOException {
+        String derivativeName = getDerivativeName(state, imageName);
+        if (state.prefilter == null) {
+            return searchImage(state, foldername, imageName, derivativeName, decoder);
+        }
+        boolean candidate;
+        try {
+            candidate = derivativeName == null ? decoder.isCandidate(imageName, openPage(state, imageName), false)
+                    : decoder.isCandidate(derivativeName, openImage(state, Paths.get(state.derivativeFoldername, derivativeName)), true);
+        } catch (IOException e) {
+            log.warn("Unable to check image " + imageName + " with the prefilter", e);
+            candidate = true;
+        }
+        if (!candidate) {
+            state.metrics.addPrefilterRejected();
+            if (!state.prefilter.isVerify()) {
+                log.debug("Image " + imageName + " rejected by the prefilter");
+                return new ArrayList<>();
+            }
+        }
+        List<Result> detectedBarcode = searchImage(state, foldername, imageName, derivativeName, decoder);
+        if (!candidate && !detectedBarcode.isEmpty()) {
+            log.warn("Image " + imageName + " was rejected by the prefilter, but contains barcodes");
+            state.metrics.addPrefilterFalseNegative();
+        }
+        return detectedBarcode;
+    }
+
+    /**
+     * Searches the derivative of the image for barcodes, if one exists. The master image is only read if no derivative exists, it cannot be read or
+     * it does not contain a barcode. If there might be more than one barcode per image, the master is always searched as well, because small codes
+     * may not be readable in the derivative, and the barcodes of both are combined.
+     *
+     * @param state
+     * @param foldername
+     * @param imageName
+     * @param derivativeName
+     * @param decoder
      * @return
      * @throws IOException
-     * @throws DAOException
-     * @throws InterruptedException
-     * @throws SwapException
      */
-    private static Result decodeBarcode(String fileName, Reader mfr, Process process)
-            throws IOException, DAOException, InterruptedException, SwapException {
-        try (InputStream is = StorageProvider.getInstance().newInputStream(Paths.get(process.getImagesOrigDirectory(false), fileName))) {
-            BufferedImage image = ImageIO.read(is);
-            LuminanceSource source = new BufferedImageLuminanceSource(image);
-            BinaryBitmap bm = new BinaryBitmap(new HybridBinarizer(source));
-            Result tmpResult = null;
-            Map<DecodeHintType, Object> tmpHintsMap = new EnumMap<>(DecodeHintType.class);
-            tmpHintsMap.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+    private List<Result> searchImage(TicketState state, String foldername, String imageName, String derivativeName, BarcodeDecoder decoder)
+            throws IOException {
+        List<Result> detectedBarcode = new ArrayList<>();
+        if (derivativeName != null) {
             try {
-                tmpResult = mfr.decode(bm, tmpHintsMap);
-            } catch (NotFoundException e) {
-                log.debug("No barcode found on image " + fileName);
-                return null;
-            } catch (FormatException e) {
-                log.debug("Found barcode on image " + fileName + " but it did not conform to configured characteristics");
-                return null;
-            } catch (ChecksumException e) {
-                log.debug("Found barcode on image " + fileName + " but its checksum did not match");
-                return null;
+                // derivatives are already reduced in size, so they are only searched at their own resolution
+                detectedBarcode = decoder.decode(derivativeName, openImage(state, Paths.get(state.derivativeFoldername, derivativeName)), 1);
+                if (!detectedBarcode.isEmpty()) {
+                    log.debug("Barcode found in derivative " + derivativeName + " of image " + imageName);
+                    if (!state.hasMultipleBarcodes) {
+                        return detectedBarcode;
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to read derivative " + derivativeName + ", using master image " + imageName, e);
             }
-            //            String result = String.valueOf(tmpResult);
+        }
+        if (detectedBarcode.isEmpty()) {
+            return decoder.decode(imageName, openPage(state, imageName));
+        }
+        BarcodeDecoder.merge(detectedBarcode, decoder.decode(imageName, openPage(state, imageName)));
+        return detectedBarcode;
+    }
+
+    private BarcodeDecoder createDecoder(TicketState state) {
+        BarcodeDecoder decoder =
+                new BarcodeDecoder(state.readerName, state.hasMultipleBarcodes, state.scanRegions, state.subsamplingSteps, state.decodeStrategy);
+        decoder.setMetrics(state.metrics);
+        decoder.setPrefilter(state.prefilter);
+        state.createdDecoders.add(decoder);
+        return decoder;
+    }
 
-            return tmpResult;
+    private List<MetricsReporter> getMetricsReporters() {
+        BarcodeConfiguration config = BarcodeConfiguration.getInstance(title);
+        List<MetricsReporter> reporters = new ArrayList<>();
+        if (config.isMetricsJournal()) {
+            reporters.add(new JournalMetricsReporter());
+        }
+        if (config.isMetricsJmx()) {
+            reporters.add(JmxMetricsReporter.getInstance());
         }
+        return reporters;
     }
 
     /**
-     * Detects barcodes in the image with name fileName in the image folder of process using passed Reader, allows for multiple Codes to be detected
+     * Returns an opener for the image, which uses the prefetched content if available
      *
-     * @param fileName
-     * @param mbr
-     * @param process
+     * @param state
+     * @param path
+     * @return
+     */
+    private StreamOpener openImage(TicketState state, Path path) {
+        byte[] data = state.preloadedImages.get(path);
+        if (data != null) {
+            return () -> new ByteArrayInputStream(data);
+        }
+        StreamOpener opener = openStorage(path);
+        return state.prefetcher == null ? opener : state.prefetcher.getOpener(path, opener);
+    }
+
+    /**
+     * Returns an opener for the master image of the page, pages of multipage files are read directly from their file
+     *
+     * @param state
+     * @param imageName
      * @return
-     * @throws IOException
-     * @throws InterruptedException
-     * @throws SwapException
-     * @throws DAOException
      */
-    private static List<Result> decodeMultipleBarcodes(String fileName, GenericMultipleBarcodeReader mbr, Process process)
-            throws IOException, InterruptedException, SwapException, DAOException {
-        try (InputStream is = StorageProvider.getInstance().newInputStream(Paths.get(process.getImagesOrigDirectory(false), fileName))) {
-            BufferedImage image = ImageIO.read(is);
-
-            //        File file = new File(fileName);
-            //        BufferedImage image = ImageIO.read(file);
-            LuminanceSource source = new BufferedImageLuminanceSource(image);
-            BinaryBitmap bm = new BinaryBitmap(new HybridBinarizer(source));
-            Result[] tmpResult = null;
-            Map<DecodeHintType, Object> tmpHintsMap = new EnumMap<>(DecodeHintType.class);
-            tmpHintsMap.put(DecodeHintType.TRY_HARDER, Boolean.FALSE);
+    private StreamOpener openPage(TicketState state, String imageName) {
+        return state.pageSource.isFrame(imageName) ? state.pageSource.getOpener(imageName) : openImage(state, state.pageSource.getPath(imageName));
+    }
+
+    private static StreamOpener openStorage(Path path) {
+        return () -> StorageProvider.getInstance().newInputStream(path);
+    }
+
+    /**
+     * Compares the existing pages with the images and finds the pages which can be kept, because they refer to an unchanged image
+     *
+     * @param state
+     * @param imageNames
+     * @param pages
+     * @return the existing page kept for each image, null if the image needs a new page
+     */
+    private DocStruct[] findKeptPages(TicketState state, List<String> imageNames, List<DocStruct> pages) {
+        List<String> locations = new ArrayList<>(pages.size());
+        List<Integer> frameNumbers = new ArrayList<>(pages.size());
+        for (DocStruct page : pages) {
+            List<ContentFile> contentFiles = page.getAllContentFiles();
+            locations.add(contentFiles == null || contentFiles.isEmpty() ? null : contentFiles.get(0).getLocation());
+            frameNumbers.add(getFrameNumber(state, page));
+        }
+        StorageProvider storage = StorageProvider.getInstance();
+        int[] matchingPages = matchExistingPages(imageNames, locations, frameNumbers, state.pageSource, index -> {
+            if (state.sampler != null && !state.sampler.isSampled(imageNames, index)) {
+                // never decoded, so there is no cached result
+                return true;
+            }
+            String imageName = imageNames.get(index);
+            Path imagePath = state.pageSource.getPath(imageName);
             try {
-                tmpResult = mbr.decodeMultiple(bm, tmpHintsMap);
-            } catch (NotFoundException e) {
-                log.debug("No barcode found on image " + fileName);
-                return new ArrayList<>();
+                return state.decodeCache.get(imageName, storage.getFileSize(imagePath), storage.getLastModifiedDate(imagePath)) != null;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        DocStruct[] keptPages = new DocStruct[imageNames.size()];
+        for (int index = 0; index < matchingPages.length; index++) {
+            keptPages[index] = matchingPages[index] < 0 ? null : pages.get(matchingPages[index]);
+        }
+        return keptPages;
+    }
+
+    /**
+     * Compares the existing pages with the images page by page. A page matches an image if it refers to the same file and image number and the
+     * image is unchanged. Pages of removed or changed images don't match, so added, removed and changed images anywhere in the list only affect
+     * their own pages. If pages were reordered, the longest sequence of matching pages in the order of the images is kept.
+     *
+     * @param imageNames
+     * @param locations the location of the file of each page, null if the page has no file
+     * @param frameNumbers the number of the image in its multipage file for each page, 0 for single images
+     * @param pageSource
+     * @param unchanged checks if the image at the index was not changed since it was decoded
+     * @return for each image the index of the page which is kept for it, -1 if the image needs a new page
+     */
+    static int[] matchExistingPages(List<String> imageNames, List<String> locations, List<Integer> frameNumbers, PageSource pageSource,
+            IntPredicate unchanged) {
+        Map<String, Integer> imageIndexes = new HashMap<>();
+        for (int index = 0; index < imageNames.size(); index++) {
+            String imageName = imageNames.get(index);
+            imageIndexes.put(pageSource.getFileName(imageName) + "#" + pageSource.getFrameNumber(imageName), index);
+        }
+        // the matching image of each page, -1 if there is none
+        int[] matchingImages = new int[locations.size()];
+        for (int page = 0; page < locations.size(); page++) {
+            String location = locations.get(page);
+            Integer index = location == null ? null
+                    : imageIndexes.get(location.substring(location.lastIndexOf('/') + 1) + "#" + frameNumbers.get(page));
+            matchingImages[page] = index != null && unchanged.test(index) ? index : -1;
+        }
+        // longest increasing sequence of matching images: tails[length] is the page ending the best sequence of length + 1 pages found so far
+        int[] tails = new int[locations.size()];
+        int[] predecessors = new int[locations.size()];
+        int length = 0;
+        for (int page = 0; page < locations.size(); page++) {
+            if (matchingImages[page] < 0) {
+                continue;
+            }
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (matchingImages[tails[middle]] < matchingImages[page]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            predecessors[page] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = page;
+            if (low == length) {
+                length++;
             }
-            List<Result> result = new ArrayList<>();
-            for (Result resultObject : tmpResult) {
-                result.add(resultObject);
+        }
+        int[] keptPages = new int[imageNames.size()];
+        Arrays.fill(keptPages, -1);
+        for (int page = length > 0 ? tails[length - 1] : -1; page >= 0; page = predecessors[page]) {
+            keptPages[matchingImages[page]] = page;
+        }
+        return keptPages;
+    }
+
+    /**
+     * Returns the positions of the images which need a new page
+     *
+     * @param keptPages the existing page kept for each image, null if no pages are kept
+     * @param imageCount
+     * @return
+     */
+    private static List<Integer> getNewPages(DocStruct[] keptPages, int imageCount) {
+        List<Integer> newPages = new ArrayList<>();
+        for (int index = 0; index < imageCount; index++) {
+            if (keptPages == null || keptPages[index] == null) {
+                newPages.add(index);
             }
+        }
+        return newPages;
+    }
 
-            return result;
+    /**
+     * Returns the multipage structure element the page belongs to, it is continued by new pages following the page
+     *
+     * @param state
+     * @param logical
+     * @param page
+     * @return the structure element or null, if the page does not belong to one
+     */
+    private DocStruct getMultiPageStructure(TicketState state, DocStruct logical, DocStruct page) {
+        Collection<String> multiPageTypes =
+                state.docByType ? state.multiPageDocstructMapType.values() : state.multiPageDocstructMatcher.getDocstructs();
+        DocStruct multiPageStructure = null;
+        for (Reference ref : page.getAllFromReferences()) {
+            DocStruct source = ref.getSource();
+            if (source.getParent() == logical && multiPageTypes.contains(source.getType().getName())) {
+                multiPageStructure = source;
+            }
         }
+        return multiPageStructure;
+    }
+
+    /**
+     * Returns the position in the logical structure after the structure elements of the given pages
+     *
+     * @param logical
+     * @param previousPages the pages before the new page
+     * @return
+     */
+    private static int getStructurePosition(DocStruct logical, List<DocStruct> previousPages) {
+        List<DocStruct> structures = logical.getAllChildren();
+        if (structures == null) {
+            return 0;
+        }
+        for (int index = previousPages.size() - 1; index >= 0; index--) {
+            int position = -1;
+            for (Reference ref : previousPages.get(index).getAllFromReferences()) {
+                if (ref.getSource().getParent() == logical) {
+                    position = Math.max(position, structures.indexOf(ref.getSource()));
+                }
+            }
+            if (position >= 0) {
+                return position + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of the image in its multipage file stored in the page
+     *
+     * @param state
+     * @param page
+     * @return the number or 0, if the page refers to a file with a single image
+     */
+    private int getFrameNumber(TicketState state, DocStruct page) {
+        if (state.frameType == null) {
+            return 0;
+        }
+        List<? extends Metadata> frameNumbers = page.getAllMetadataByType(state.frameType);
+        if (frameNumbers == null || frameNumbers.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(frameNumbers.get(0).getValue());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Removes all pages which are not kept and the structure elements which only contain removed pages. Structure elements which contain kept pages
+     * keep them.
+     *
+     * @param physical
+     * @param logical
+     * @param ff
+     * @param pages
+     * @param keptPages
+     * @throws PreferencesException
+     */
+    private void removePages(DocStruct physical, DocStruct logical, Fileformat ff, List<DocStruct> pages, Set<DocStruct> keptPages)
+            throws PreferencesException {
+        Set<DocStruct> affectedStructures = new HashSet<>();
+        for (DocStruct page : pages) {
+            if (keptPages.contains(page)) {
+                continue;
+            }
+            ff.getDigitalDocument().getFileSet().removeFile(page.getAllContentFiles().get(0));
+            List<Reference> refs = new ArrayList<>(page.getAllFromReferences());
+            for (Reference ref : refs) {
+                if (ref.getSource() != logical) {
+                    affectedStructures.add(ref.getSource());
+                }
+                ref.getSource().removeReferenceTo(page);
+            }
+            physical.removeChild(page);
+        }
+        for (DocStruct ds : affectedStructures) {
+            List<Reference> remaining = ds.getAllToReferences(LOGICAL_PHYSICAL);
+            if ((remaining == null || remaining.isEmpty()) && ds.getParent() == logical) {
+                logical.removeChild(ds);
+            }
+        }
+    }
+
+    private void removeExistingData(DocStruct physical, DocStruct logical, Fileformat ff, List<DocStruct> pages) throws PreferencesException {
+        // process contains data, clear it
+        for (DocStruct page : pages) {
+            ff.getDigitalDocument().getFileSet().removeFile(page.getAllContentFiles().get(0));
+            List<Reference> refs = new ArrayList<>(page.getAllFromReferences());
+            for (ugh.dl.Reference ref : refs) {
+                ref.getSource().removeReferenceTo(page);
+            }
+        }
+        while (physical.getAllChildren() != null && !physical.getAllChildren().isEmpty()) {
+            physical.removeChild(physical.getAllChildren().get(0));
+        }
+        while (logical.getAllChildren() != null && !logical.getAllChildren().isEmpty()) {
+            logical.removeChild(logical.getAllChildren().get(0));
+        }
+    }
+
+    @Override
+    public String getTicketHandlerName() {
+        return "BarcodeScanner";
     }
 }
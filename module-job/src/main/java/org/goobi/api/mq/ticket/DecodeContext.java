@@ -0,0 +1,230 @@
+package org.goobi.api.mq.ticket;
+
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * The buffers of one decoding worker, which are reused for all pages it decodes. The luminance buffers only grow, so once the largest page was
+ * read, the following pages are read and converted without allocating any array of the size of the page. Image readers are kept per format
+ * instead of being created for every file.
+ *
+ * The buffers are counted as retained memory of the {@link MemoryAdmission} when they grow, until the context is closed at the end of the ticket.
+ *
+ * Like the {@link BarcodeDecoder} holding it, a context must only be used by one thread at a time.
+ */
+public class DecodeContext {
+
+    /**
+     * Separate buffers for images which are needed at the same time
+     */
+    public enum Slot {
+        /**
+         * Scan regions and whole pages
+         */
+        PAGE,
+        /**
+         * The image checked by the prefilter, it is decoded later while regions are read into PAGE
+         */
+        PREVIEW,
+        /**
+         * The page rotated by 90 degrees
+         */
+        ROTATED
+    }
+
+    private static final ComponentColorModel GRAY_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] { 8 },
+            false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    /**
+     * Size up to which the stream buffer is kept for the next file, larger buffers are dropped when the stream is closed
+     */
+    private static final int MAX_RETAINED_STREAM_BUFFER = 64 * 1024 * 1024;
+
+    private final Map<Slot, byte[]> buffers = new EnumMap<>(Slot.class);
+    private final Map<Slot, BufferedImage> destinations = new EnumMap<>(Slot.class);
+    private final List<ImageReader> imageReaders = new ArrayList<>();
+    private byte[] streamBuffer = new byte[0];
+    private int[] rgbRow = new int[0];
+
+    /**
+     * Size of all buffers, as counted by the admission control
+     */
+    private long retained;
+
+    /**
+     * Returns the buffer of the slot with at least the given length, its content is undefined
+     *
+     * @param slot
+     * @param length
+     * @return
+     */
+    byte[] getBuffer(Slot slot, int length) {
+        byte[] buffer = buffers.get(slot);
+        if (buffer == null || buffer.length < length) {
+            retain(length - (buffer == null ? 0 : buffer.length));
+            buffer = new byte[length];
+            buffers.put(slot, buffer);
+            destinations.remove(slot);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns an 8 bit grayscale image of the given size on the buffer of the slot, image readers can decode directly into it. The image is only
+     * created again if the size changed.
+     *
+     * @param slot
+     * @param width
+     * @param height
+     * @return
+     */
+    BufferedImage getDestination(Slot slot, int width, int height) {
+        byte[] buffer = getBuffer(slot, width * height);
+        BufferedImage destination = destinations.get(slot);
+        if (destination == null || destination.getWidth() != width || destination.getHeight() != height) {
+            DataBufferByte dataBuffer = new DataBufferByte(buffer, width * height);
+            WritableRaster raster = Raster.createInterleavedRaster(dataBuffer, width, height, width, 1, new int[] { 0 }, new Point(0, 0));
+            destination = new BufferedImage(GRAY_MODEL, raster, false, null);
+            destinations.put(slot, destination);
+        }
+        return destination;
+    }
+
+    /**
+     * Wraps the luminance in the buffer of the slot, without copying it
+     *
+     * @param slot
+     * @param width
+     * @param height
+     * @return
+     */
+    LuminanceSource getSource(Slot slot, int width, int height) {
+        return new ReusableLuminanceSource(getBuffer(slot, width * height), width, height);
+    }
+
+    /**
+     * Returns the binarizer for a page
+     *
+     * @param source
+     * @return
+     */
+    Binarizer createBinarizer(LuminanceSource source) {
+        return new HybridBinarizer(source);
+    }
+
+    /**
+     * Returns the buffer caching the content of the image file with at least the given length
+     *
+     * @param length
+     * @param keep number of bytes at the beginning of the buffer which are copied if a larger buffer is needed
+     * @return
+     */
+    byte[] getStreamBuffer(int length, int keep) {
+        if (streamBuffer.length < length) {
+            retain(length - streamBuffer.length);
+            byte[] buffer = new byte[length];
+            System.arraycopy(streamBuffer, 0, buffer, 0, keep);
+            streamBuffer = buffer;
+        }
+        return streamBuffer;
+    }
+
+    /**
+     * Drops the stream buffer after an unusually large file, so a single large file does not keep its size in memory for the rest of the ticket
+     */
+    void trimStreamBuffer() {
+        if (streamBuffer.length > MAX_RETAINED_STREAM_BUFFER) {
+            retain(-streamBuffer.length);
+            streamBuffer = new byte[0];
+        }
+    }
+
+    /**
+     * Returns a row buffer for the color conversion of images with at least the given length
+     *
+     * @param length
+     * @return
+     */
+    int[] getRgbRow(int length) {
+        if (rgbRow.length < length) {
+            retain(4L * (length - rgbRow.length));
+            rgbRow = new int[length];
+        }
+        return rgbRow;
+    }
+
+    /**
+     * Returns an image reader for the stream. A reader used before is returned if it can decode the stream, otherwise a new one is created and
+     * kept for the next files.
+     *
+     * @param iis
+     * @return the reader or null, if the format is not supported
+     * @throws IOException
+     */
+    ImageReader getImageReader(ImageInputStream iis) throws IOException {
+        for (ImageReader imageReader : imageReaders) {
+            if (imageReader.getOriginatingProvider() != null && imageReader.getOriginatingProvider().canDecodeInput(iis)) {
+                return imageReader;
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader imageReader = readers.next();
+        imageReaders.add(imageReader);
+        return imageReader;
+    }
+
+    /**
+     * Returns the length of the buffer of the slot, the luminance of an image up to this size is read without allocating memory
+     *
+     * @param slot
+     * @return
+     */
+    int getBufferLength(Slot slot) {
+        byte[] buffer = buffers.get(slot);
+        return buffer == null ? 0 : buffer.length;
+    }
+
+    /**
+     * Releases all buffers and image readers. The context can be used again afterwards, the buffers are allocated again then.
+     */
+    void close() {
+        retain(-retained);
+        buffers.clear();
+        destinations.clear();
+        streamBuffer = new byte[0];
+        rgbRow = new int[0];
+        for (ImageReader imageReader : imageReaders) {
+            imageReader.dispose();
+        }
+        imageReaders.clear();
+    }
+
+    private void retain(long bytes) {
+        retained += bytes;
+        MemoryAdmission.getInstance().retain(bytes);
+    }
+}
@@ -0,0 +1,324 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Stores the detected barcodes of each image in a file in the process folder, so images which did not change since the last run don't have to be
+ * decoded again. An entry is only used if the file size and modification date of the image and the decoding settings are unchanged. Entries of
+ * images which are not requested during a run are dropped when the cache is saved. Checkpoints only write the images decoded since the last checkpoint
+ * into a file of their own next to the cache file, these files are read together with the cache file and merged into it when the cache is saved.
+ */
+@Log4j
+public class DecodeResultCache {
+
+    public static final String CACHE_FILE_NAME = "barcode_cache.dat";
+
+    private static final int MAGIC = 0x42434331;
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final Path cacheFile;
+    private final String settings;
+
+    private final Map<String, Entry> previousEntries;
+    private final Map<String, Entry> currentEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries decoded since the last checkpoint
+     */
+    private final Map<String, Entry> pendingEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Checkpoint files of this and of interrupted earlier runs, deleted when the cache is saved
+     */
+    private final List<Path> checkpointFiles;
+
+    private DecodeResultCache(Path cacheFile, String settings, Map<String, Entry> previousEntries, List<Path> checkpointFiles) {
+        this.cacheFile = cacheFile;
+        this.settings = settings;
+        this.previousEntries = previousEntries;
+        this.checkpointFiles = checkpointFiles;
+    }
+
+    /**
+     * Loads the cache from cacheFile. If the file does not exist, cannot be read or was written with different decoding settings, an empty cache is
+     * returned.
+     *
+     * @param cacheFile
+     * @param settings a description of all settings which influence the decoding result
+     * @return
+     */
+    public static DecodeResultCache load(Path cacheFile, String settings) {
+        Map<String, Entry> entries = new HashMap<>();
+        read(cacheFile, settings, entries);
+        List<Path> checkpointFiles = getCheckpointFiles(cacheFile);
+        for (Path checkpointFile : checkpointFiles) {
+            read(checkpointFile, settings, entries);
+        }
+        return new DecodeResultCache(cacheFile, settings, entries, checkpointFiles);
+    }
+
+    /**
+     * Adds the entries of a cache or checkpoint file to entries. Files which cannot be read or were written with different decoding settings are
+     * ignored.
+     *
+     * @param file
+     * @param settings
+     * @param entries
+     */
+    private static void read(Path file, String settings, Map<String, Entry> entries) {
+        StorageProvider storage = StorageProvider.getInstance();
+        if (!storage.isFileExists(file)) {
+            return;
+        }
+        Map<String, Entry> fileEntries = new HashMap<>();
+        try (InputStream is = storage.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+            if (readHeader(in, Collections.singleton(settings))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String imageName = in.readUTF();
+                    fileEntries.put(imageName, new Entry(in.readLong(), in.readLong(), readResults(in)));
+                }
+                entries.putAll(fileEntries);
+            } else {
+                log.debug("Decoding settings changed, ignoring cached barcodes in " + file);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Unable to read barcode cache " + file + ", its images are decoded again", e);
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache file and its checkpoint files without reading the entries. Files written with other decoding
+     * settings are not counted. Images which were changed since they were decoded are counted as well, and an image contained in several files is
+     * counted more than once.
+     *
+     * @param cacheFile
+     * @param settings the decoding settings the entries may have been decoded with
+     * @return
+     */
+    public static int countEntries(Path cacheFile, Collection<String> settings) {
+        StorageProvider storage = StorageProvider.getInstance();
+        List<Path> files = new ArrayList<>();
+        files.add(cacheFile);
+        files.addAll(getCheckpointFiles(cacheFile));
+        int count = 0;
+        for (Path file : files) {
+            if (!storage.isFileExists(file)) {
+                continue;
+            }
+            try (InputStream is = storage.newInputStream(file);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+                if (readHeader(in, settings)) {
+                    count += in.readInt();
+                }
+            } catch (IOException e) {
+                log.debug("Unable to read barcode cache " + file, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the header of a cache or checkpoint file
+     *
+     * @param in
+     * @param settings
+     * @return true if the file is a cache file written with one of the settings, the number of entries follows
+     * @throws IOException
+     */
+    private static boolean readHeader(DataInputStream in, Collection<String> settings) throws IOException {
+        return in.readInt() == MAGIC && settings.contains(in.readUTF());
+    }
+
+    /**
+     * Returns the checkpoint files next to the cache file in the order they were written
+     *
+     * @param cacheFile
+     * @return
+     */
+    private static List<Path> getCheckpointFiles(Path cacheFile) {
+        String prefix = cacheFile.getFileName() + CHECKPOINT_SUFFIX;
+        List<Path> checkpointFiles = new ArrayList<>();
+        if (cacheFile.getParent() == null) {
+            return checkpointFiles;
+        }
+        List<String> fileNames = StorageProvider.getInstance().list(cacheFile.getParent().toString());
+        // the names end with the number of the checkpoint
+        fileNames.stream()
+                .filter(fileName -> fileName.startsWith(prefix) && fileName.substring(prefix.length()).matches("\\d{1,9}"))
+                .sorted((first, second) -> Integer.compare(Integer.parseInt(first.substring(prefix.length())),
+                        Integer.parseInt(second.substring(prefix.length()))))
+                .forEach(fileName -> checkpointFiles.add(cacheFile.resolveSibling(fileName)));
+        return checkpointFiles;
+    }
+
+    /**
+     * Returns the cached barcodes of the image, null if the image is unknown or was changed
+     *
+     * @param imageName
+     * @param fileSize
+     * @param lastModified
+     * @return
+     */
+    public List<Result> get(String imageName, long fileSize, long lastModified) {
+        Entry entry = previousEntries.get(imageName);
+        if (entry == null || entry.fileSize != fileSize || entry.lastModified != lastModified) {
+            return null;
+        }
+        currentEntries.put(imageName, entry);
+        return entry.results;
+    }
+
+    public void put(String imageName, long fileSize, long lastModified, List<Result> results) {
+        Entry entry = new Entry(fileSize, lastModified, Collections.unmodifiableList(new ArrayList<>(results)));
+        currentEntries.put(imageName, entry);
+        pendingEntries.put(imageName, entry);
+    }
+
+    /**
+     * Writes all entries requested or added during this run into the cache file, entries of images which no longer exist are dropped. The
+     * checkpoint files are deleted afterwards.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        write(cacheFile, new HashMap<>(currentEntries).entrySet());
+        pendingEntries.clear();
+        StorageProvider storage = StorageProvider.getInstance();
+        for (Path checkpointFile : checkpointFiles) {
+            storage.deleteFile(checkpointFile);
+        }
+        checkpointFiles.clear();
+    }
+
+    /**
+     * Saves the progress of the current run while images are still decoded. Only the entries added since the last checkpoint are written into a
+     * new checkpoint file, so the cost of a checkpoint does not grow with the number of decoded images. The cache file and the earlier checkpoint
+     * files stay untouched, so an interrupted run can be continued from the last checkpoint.
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        for (String imageName : pendingEntries.keySet()) {
+            Entry entry = pendingEntries.remove(imageName);
+            if (entry != null) {
+                entries.put(imageName, entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        int number = 1;
+        if (!checkpointFiles.isEmpty()) {
+            String lastName = checkpointFiles.get(checkpointFiles.size() - 1).getFileName().toString();
+            number = Integer.parseInt(lastName.substring(lastName.lastIndexOf(CHECKPOINT_SUFFIX) + CHECKPOINT_SUFFIX.length())) + 1;
+        }
+        Path checkpointFile = cacheFile.resolveSibling(cacheFile.getFileName() + CHECKPOINT_SUFFIX + number);
+        try {
+            write(checkpointFile, entries.entrySet());
+        } catch (IOException e) {
+            // written with the next checkpoint
+            pendingEntries.putAll(entries);
+            throw e;
+        }
+        checkpointFiles.add(checkpointFile);
+    }
+
+    /**
+     * Writes the entries into a temporary file first, which replaces the target file when it is complete, so an interrupted write does not destroy
+     * the previous state
+     *
+     * @param file
+     * @param entries
+     * @throws IOException
+     */
+    private void write(Path file, Collection<Map.Entry<String, Entry>> entries) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        StorageProvider storage = StorageProvider.getInstance();
+        try (OutputStream os = storage.newOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(settings);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().fileSize);
+                out.writeLong(entry.getValue().lastModified);
+                writeResults(out, entry.getValue().results);
+            }
+        }
+        storage.move(tempFile, file);
+    }
+
+    private static List<Result> readResults(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Result> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String text = in.readUTF();
+            BarcodeFormat format = BarcodeFormat.valueOf(in.readUTF());
+            ResultPoint[] points = new ResultPoint[in.readInt()];
+            for (int j = 0; j < points.length; j++) {
+                points[j] = new ResultPoint(in.readFloat(), in.readFloat());
+            }
+            results.add(new Result(text, null, points, format));
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    private static void writeResults(DataOutputStream out, List<Result> results) throws IOException {
+        out.writeInt(results.size());
+        for (Result result : results) {
+            out.writeUTF(result.getText());
+            out.writeUTF(result.getBarcodeFormat().name());
+            List<ResultPoint> points = new ArrayList<>();
+            if (result.getResultPoints() != null) {
+                for (ResultPoint point : result.getResultPoints()) {
+                    if (point != null) {
+                        points.add(point);
+                    }
+                }
+            }
+            out.writeInt(points.size());
+            for (ResultPoint point : points) {
+                out.writeFloat(point.getX());
+                out.writeFloat(point.getY());
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long fileSize;
+        private final long lastModified;
+        private final List<Result> results;
+
+        private Entry(long fileSize, long lastModified, List<Result> results) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.results = results;
+        }
+    }
+}
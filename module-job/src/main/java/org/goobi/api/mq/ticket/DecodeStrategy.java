@@ -0,0 +1,77 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.google.zxing.BarcodeFormat;
+
+import lombok.Getter;
+
+/**
+ * Describes how much effort is spent on a page. The adaptive strategy decodes every page with a fast pass first and only escalates to TRY_HARDER,
+ * rotated and inverted images on pages which plausibly contain a barcode.
+ */
+@Getter
+public class DecodeStrategy {
+
+    /**
+     * Decodes single barcodes with TRY_HARDER and multiple barcodes without it, for every possible format
+     */
+    public static final DecodeStrategy LEGACY = new DecodeStrategy(false, false, false, Collections.emptySet());
+
+    private static final Set<BarcodeFormat> ONE_D_FORMATS = EnumSet.of(BarcodeFormat.CODABAR, BarcodeFormat.CODE_39, BarcodeFormat.CODE_93,
+            BarcodeFormat.CODE_128, BarcodeFormat.EAN_8, BarcodeFormat.EAN_13, BarcodeFormat.ITF, BarcodeFormat.RSS_14,
+            BarcodeFormat.RSS_EXPANDED, BarcodeFormat.UPC_A, BarcodeFormat.UPC_E, BarcodeFormat.UPC_EAN_EXTENSION);
+
+    /**
+     * true if the fast pass is run first and the page is only decoded again if it plausibly contains a barcode
+     */
+    private final boolean adaptive;
+
+    /**
+     * true if the page is decoded rotated by 90 degrees when no barcode was found otherwise
+     */
+    private final boolean rotate;
+
+    /**
+     * true if the page is decoded with inverted colors when no barcode was found otherwise
+     */
+    private final boolean invert;
+
+    /**
+     * The formats to search for, empty if all formats are searched
+     */
+    private final Set<BarcodeFormat> possibleFormats;
+
+    public DecodeStrategy(boolean adaptive, boolean rotate, boolean invert, Set<BarcodeFormat> possibleFormats) {
+        this.adaptive = adaptive;
+        this.rotate = rotate;
+        this.invert = invert;
+        this.possibleFormats = possibleFormats.isEmpty() ? Collections.emptySet()
+                : Collections.unmodifiableSet(EnumSet.copyOf(possibleFormats));
+    }
+
+    /**
+     * Checks if any of the possible formats is a one dimensional barcode. Only these need to be decoded rotated, as the two dimensional readers find
+     * codes in any orientation.
+     *
+     * @return
+     */
+    public boolean isOneDimensionalPossible() {
+        if (possibleFormats.isEmpty()) {
+            return true;
+        }
+        for (BarcodeFormat format : possibleFormats) {
+            if (ONE_D_FORMATS.contains(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "adaptive=" + adaptive + ",rotate=" + rotate + ",invert=" + invert + ",formats=" + possibleFormats;
+    }
+}
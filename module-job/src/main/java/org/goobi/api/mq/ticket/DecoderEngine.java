@@ -0,0 +1,29 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.List;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+
+/**
+ * Searches the luminance of a page for barcodes. Engines are created by a {@link DecoderEngineProvider} for the hints of one decoding pass, so they
+ * can prepare their readers once instead of for every page. Like the {@link BarcodeDecoder} holding it, an engine is only used by one thread at a
+ * time.
+ */
+public interface DecoderEngine {
+
+    /**
+     * Searches the image for barcodes
+     *
+     * @param image the luminance of the page with its binarizer, the black matrix is shared by all engines decoding the page
+     * @param multiple true to return all barcodes of the page, false to return the first one found
+     * @return the barcodes, never empty
+     * @throws NotFoundException if the page contains no barcode
+     * @throws FormatException if a barcode was found, but could not be read
+     * @throws ChecksumException if a barcode was found, but its checksum did not match
+     */
+    List<Result> decode(BinaryBitmap image, boolean multiple) throws NotFoundException, FormatException, ChecksumException;
+}
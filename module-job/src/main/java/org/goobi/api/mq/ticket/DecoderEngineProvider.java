@@ -0,0 +1,28 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.Map;
+
+import com.google.zxing.DecodeHintType;
+
+/**
+ * Creates the instances of a decoder engine. Providers of additional engines are registered in
+ * <code>META-INF/services/org.goobi.api.mq.ticket.DecoderEngineProvider</code> and can then be selected by their name in the plugin
+ * configuration, like the engines of {@link DecoderEngines}.
+ */
+public interface DecoderEngineProvider {
+
+    /**
+     * Returns the name the engine is selected with in the configuration
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Creates a new instance of the engine
+     *
+     * @param hints the hints of the decoding pass the engine is used for, they don't change
+     * @return
+     */
+    DecoderEngine create(Map<DecodeHintType, Object> hints);
+}
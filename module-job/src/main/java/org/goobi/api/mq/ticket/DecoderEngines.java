@@ -0,0 +1,208 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.function.Function;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.FormatException;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.Result;
+import com.google.zxing.datamatrix.DataMatrixReader;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.oned.EAN13Reader;
+import com.google.zxing.oned.UPCAReader;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Creates the decoder engines selected in the configuration. The built-in engines are based on ZXing:
+ * <ul>
+ * <li>multi: all formats, slower and more prone to find non existent codes but more versatile</li>
+ * <li>ean13, UPCA, qr, datamatrix: a single format</li>
+ * <li>rows1d: one dimensional formats in a few bands of rows, see {@link RowBandEngine}</li>
+ * </ul>
+ * Further engines are loaded from the {@link DecoderEngineProvider}s registered as service. Several engines separated by comma are chained: they are
+ * tried in the given order until one finds a barcode, so a cheap engine can be tried before an expensive one.
+ */
+@Log4j
+public final class DecoderEngines {
+
+    public static final String DEFAULT_ENGINE = "multi";
+
+    private static final Map<String, Function<Map<DecodeHintType, Object>, DecoderEngine>> BUILT_IN_ENGINES = new LinkedHashMap<>();
+
+    static {
+        BUILT_IN_ENGINES.put("multi", hints -> new ReaderEngine(new PreparedReader(new MultiFormatReader(), hints), hints));
+        BUILT_IN_ENGINES.put("ean13", hints -> new ReaderEngine(new EAN13Reader(), hints));
+        BUILT_IN_ENGINES.put("UPCA", hints -> new ReaderEngine(new UPCAReader(), hints));
+        BUILT_IN_ENGINES.put("qr", hints -> new ReaderEngine(new QRCodeReader(), hints));
+        BUILT_IN_ENGINES.put("datamatrix", hints -> new ReaderEngine(new DataMatrixReader(), hints));
+        BUILT_IN_ENGINES.put("rows1d", RowBandEngine::new);
+    }
+
+    /**
+     * Engines of the registered providers by name, loaded on first use
+     */
+    private static Map<String, DecoderEngineProvider> providers;
+
+    private DecoderEngines() {
+    }
+
+    /**
+     * Creates the engines with the given names
+     *
+     * @param names name of the engine, or names of several engines separated by comma which are tried in this order. Unknown names are replaced by
+     *            the default engine.
+     * @param hints the hints of the decoding pass the engines are used for
+     * @return
+     */
+    public static DecoderEngine create(String names, Map<DecodeHintType, Object> hints) {
+        List<DecoderEngine> engines = new ArrayList<>();
+        for (String name : (names == null ? DEFAULT_ENGINE : names).split(",")) {
+            if (!name.trim().isEmpty()) {
+                engines.add(createEngine(name.trim(), hints));
+            }
+        }
+        if (engines.isEmpty()) {
+            return createEngine(DEFAULT_ENGINE, hints);
+        }
+        return engines.size() == 1 ? engines.get(0) : new ChainedEngine(engines);
+    }
+
+    private static DecoderEngine createEngine(String name, Map<DecodeHintType, Object> hints) {
+        Function<Map<DecodeHintType, Object>, DecoderEngine> builtIn = BUILT_IN_ENGINES.get(name);
+        if (builtIn != null) {
+            return builtIn.apply(hints);
+        }
+        DecoderEngineProvider provider = getProviders().get(name);
+        if (provider != null) {
+            return provider.create(hints);
+        }
+        log.warn("Unknown decoder engine " + name + ", using " + DEFAULT_ENGINE);
+        return BUILT_IN_ENGINES.get(DEFAULT_ENGINE).apply(hints);
+    }
+
+    private static synchronized Map<String, DecoderEngineProvider> getProviders() {
+        if (providers == null) {
+            providers = new HashMap<>();
+            try {
+                for (DecoderEngineProvider provider : ServiceLoader.load(DecoderEngineProvider.class, DecoderEngineProvider.class.getClassLoader())) {
+                    if (BUILT_IN_ENGINES.containsKey(provider.getName())) {
+                        log.warn("Decoder engine " + provider.getName() + " of " + provider.getClass().getName()
+                                + " is ignored, the name is reserved");
+                    } else {
+                        providers.put(provider.getName(), provider);
+                    }
+                }
+            } catch (ServiceConfigurationError e) {
+                log.error("Unable to load decoder engines", e);
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Engine decoding with a ZXing reader, multiple barcodes are searched by splitting the page around each barcode found
+     */
+    private static class ReaderEngine implements DecoderEngine {
+
+        private final Reader reader;
+        private final GenericMultipleBarcodeReader multipleReader;
+        private final Map<DecodeHintType, Object> hints;
+
+        private ReaderEngine(Reader reader, Map<DecodeHintType, Object> hints) {
+            this.reader = reader;
+            this.multipleReader = new GenericMultipleBarcodeReader(reader);
+            this.hints = hints;
+        }
+
+        @Override
+        public List<Result> decode(BinaryBitmap image, boolean multiple) throws NotFoundException, FormatException, ChecksumException {
+            if (multiple) {
+                return Arrays.asList(multipleReader.decodeMultiple(image, hints));
+            }
+            return Collections.singletonList(reader.decode(image, hints));
+        }
+    }
+
+    /**
+     * Tries the engines in their order until one finds a barcode. If none does, the most specific error is thrown, so a barcode which was found
+     * but could not be read is reported as such.
+     */
+    private static class ChainedEngine implements DecoderEngine {
+
+        private final List<DecoderEngine> engines;
+
+        private ChainedEngine(List<DecoderEngine> engines) {
+            this.engines = engines;
+        }
+
+        @Override
+        public List<Result> decode(BinaryBitmap image, boolean multiple) throws NotFoundException, FormatException, ChecksumException {
+            FormatException formatException = null;
+            ChecksumException checksumException = null;
+            for (DecoderEngine engine : engines) {
+                try {
+                    List<Result> results = engine.decode(image, multiple);
+                    if (!results.isEmpty()) {
+                        return results;
+                    }
+                } catch (NotFoundException e) {
+                    // try the next engine
+                } catch (FormatException e) {
+                    formatException = e;
+                } catch (ChecksumException e) {
+                    checksumException = e;
+                }
+            }
+            if (checksumException != null) {
+                throw checksumException;
+            }
+            if (formatException != null) {
+                throw formatException;
+            }
+            throw NotFoundException.getNotFoundInstance();
+        }
+    }
+
+    /**
+     * Wraps a {@link MultiFormatReader} whose hints were set once, the hints passed to the decode methods are ignored
+     */
+    private static class PreparedReader implements Reader {
+
+        private final MultiFormatReader reader;
+
+        private PreparedReader(MultiFormatReader reader, Map<DecodeHintType, Object> hints) {
+            this.reader = reader;
+            reader.setHints(hints);
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image) throws NotFoundException {
+            return reader.decodeWithState(image);
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+            return reader.decodeWithState(image);
+        }
+
+        @Override
+        public void reset() {
+            reader.reset();
+        }
+    }
+}
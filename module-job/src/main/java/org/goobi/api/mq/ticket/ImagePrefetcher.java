@@ -0,0 +1,243 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.goobi.api.mq.ticket.MemoryAdmission.Reservation;
+import org.goobi.api.mq.ticket.PageImageLoader.StreamOpener;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Reads the next images into memory in a background thread, while the current images are decoded. The number of images and bytes held in memory
+ * is limited, the background thread waits until images are released again. Images larger than the byte limit are not prefetched, they are read
+ * from the storage when they are needed. The images held in memory are counted against the budget of the {@link MemoryAdmission}, images which
+ * don't fit into it are not prefetched either.
+ *
+ * If an image is needed before the background thread started to read it, it is read directly from the storage and skipped by the background
+ * thread, so the decoding never waits for images further back in the queue.
+ */
+@Log4j
+public class ImagePrefetcher implements Closeable {
+
+    private enum State {
+        WAITING,
+        LOADING,
+        LOADED,
+        SKIPPED,
+        RELEASED
+    }
+
+    private static class Entry {
+        private State state = State.WAITING;
+        private long size;
+        private boolean reserved;
+        private Reservation reservation;
+        private byte[] data;
+    }
+
+    private final int maxImages;
+    private final long maxBytes;
+    private final List<Path> paths;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private int bufferedImages;
+    private long bufferedBytes;
+    private boolean closed;
+
+    /**
+     * Starts to read the images in the given order
+     *
+     * @param maxImages maximal number of images held in memory
+     * @param maxBytes maximal number of bytes held in memory
+     * @param paths the images in the order they are decoded
+     */
+    public ImagePrefetcher(int maxImages, long maxBytes, List<Path> paths) {
+        this.maxImages = Math.max(1, maxImages);
+        this.maxBytes = maxBytes;
+        this.paths = paths;
+        for (Path path : paths) {
+            entries.put(path, new Entry());
+        }
+        executor.submit(this::prefetch);
+    }
+
+    /**
+     * Returns an opener which uses the prefetched content of the image, if available, and reads from fallback otherwise
+     *
+     * @param path
+     * @param fallback
+     * @return
+     */
+    public StreamOpener getOpener(Path path, StreamOpener fallback) {
+        return () -> {
+            byte[] data = await(path);
+            return data == null ? fallback.open() : new ByteArrayInputStream(data);
+        };
+    }
+
+    /**
+     * Removes the image from memory, must be called once the image was decoded or is not needed any more
+     *
+     * @param path
+     */
+    public synchronized void release(Path path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return;
+        }
+        switch (entry.state) {
+            case WAITING:
+                entry.state = State.SKIPPED;
+                break;
+            case LOADING:
+                // the memory is freed by the background thread once the image is read
+                entry.state = State.RELEASED;
+                break;
+            case LOADED:
+                free(entry);
+                entry.state = State.RELEASED;
+                break;
+            default:
+                break;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                free(entry);
+            }
+            notifyAll();
+        }
+        executor.shutdownNow();
+    }
+
+    private synchronized byte[] await(Path path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.state == State.WAITING) {
+            // needed before the background thread reached it, read it directly
+            entry.state = State.SKIPPED;
+            notifyAll();
+            return null;
+        }
+        while (entry.state == State.LOADING && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for image " + path, e);
+            }
+        }
+        return entry.state == State.LOADED ? entry.data : null;
+    }
+
+    private void prefetch() {
+        StorageProvider storage = StorageProvider.getInstance();
+        for (Path path : paths) {
+            Entry entry = entries.get(path);
+            try {
+                long size = storage.getFileSize(path);
+                if (!reserve(entry, size)) {
+                    continue;
+                }
+                byte[] data;
+                try (InputStream in = storage.newInputStream(path)) {
+                    data = in.readAllBytes();
+                }
+                loaded(entry, data);
+            } catch (IOException e) {
+                log.debug("Unable to prefetch image " + path, e);
+                failed(entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the image fits into the limits and reserves the memory for it
+     *
+     * @return false if the image is not prefetched
+     */
+    private synchronized boolean reserve(Entry entry, long size) throws InterruptedException {
+        if (size > maxBytes) {
+            if (entry.state == State.WAITING) {
+                entry.state = State.SKIPPED;
+            }
+            return false;
+        }
+        // at least one image is always allowed, so a single large image cannot block the queue
+        while (!closed && entry.state == State.WAITING && bufferedImages > 0
+                && (bufferedImages >= maxImages || bufferedBytes + size > maxBytes)) {
+            wait();
+        }
+        if (closed || entry.state != State.WAITING) {
+            return false;
+        }
+        // the decoding threads must not wait for memory held by images decoded later
+        Reservation reservation = MemoryAdmission.getInstance().tryReserve(size);
+        if (reservation == null) {
+            entry.state = State.SKIPPED;
+            return false;
+        }
+        entry.reservation = reservation;
+        entry.state = State.LOADING;
+        entry.size = size;
+        entry.reserved = true;
+        bufferedImages++;
+        bufferedBytes += size;
+        return true;
+    }
+
+    private synchronized void loaded(Entry entry, byte[] data) {
+        if (entry.state == State.LOADING && !closed) {
+            entry.data = data;
+            entry.state = State.LOADED;
+        } else {
+            free(entry);
+        }
+        notifyAll();
+    }
+
+    private synchronized void failed(Entry entry) {
+        free(entry);
+        if (entry.state == State.LOADING) {
+            entry.state = State.SKIPPED;
+        }
+        notifyAll();
+    }
+
+    private void free(Entry entry) {
+        entry.data = null;
+        if (entry.reserved) {
+            entry.reserved = false;
+            bufferedImages--;
+            bufferedBytes -= entry.size;
+            entry.reservation.close();
+            entry.reservation = null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.goobi.api.mq.ticket;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.goobi.api.mq.ticket.BarcodeMetrics.Phase;
+import org.goobi.beans.Process;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Sums up the metrics of all tickets and publishes the totals as MXBean <code>de.intranda.goobi.plugins:type=BarcodeScanner</code>
+ */
+@Log4j
+public class JmxMetricsReporter implements MetricsReporter, BarcodeStatisticsMXBean {
+
+    private static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=BarcodeScanner";
+
+    private static JmxMetricsReporter instance;
+
+    private final LongAdder tickets = new LongAdder();
+    private final LongAdder images = new LongAdder();
+    private final LongAdder imagesWithBarcode = new LongAdder();
+    private final LongAdder barcodes = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder prefilterRejected = new LongAdder();
+    private final LongAdder prefilterFalseNegatives = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder formatErrors = new LongAdder();
+    private final LongAdder checksumErrors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder ticketTime = new LongAdder();
+    private final LongAdder imageTime = new LongAdder();
+    private final LongAdder prefilterTime = new LongAdder();
+    private final LongAdder storageReadTime = new LongAdder();
+    private final LongAdder imageDecodeTime = new LongAdder();
+    private final LongAdder binarizationTime = new LongAdder();
+    private final LongAdder barcodeDecodeTime = new LongAdder();
+    private final LongAdder metadataTime = new LongAdder();
+
+    private JmxMetricsReporter() {
+    }
+
+    /**
+     * Returns the reporter of this JVM, it is registered at the platform MBean server on first use
+     *
+     * @return
+     */
+    public static synchronized JmxMetricsReporter getInstance() {
+        if (instance == null) {
+            instance = new JmxMetricsReporter();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(instance, name);
+            } catch (JMException e) {
+                log.warn("Unable to register barcode scanner statistics", e);
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public void report(Process process, BarcodeMetrics metrics) {
+        tickets.increment();
+        images.add(metrics.getImages());
+        imagesWithBarcode.add(metrics.getImagesWithBarcode());
+        barcodes.add(metrics.getBarcodes());
+        cacheHits.add(metrics.getCacheHits());
+        prefilterRejected.add(metrics.getPrefilterRejected());
+        prefilterFalseNegatives.add(metrics.getPrefilterFalseNegatives());
+        notFound.add(metrics.getNotFound());
+        formatErrors.add(metrics.getFormatErrors());
+        checksumErrors.add(metrics.getChecksumErrors());
+        bytesRead.add(metrics.getBytesRead());
+        ticketTime.add(metrics.getDuration());
+        imageTime.add(metrics.getImageLatency());
+        prefilterTime.add(metrics.getTime(Phase.PREFILTER));
+        storageReadTime.add(metrics.getTime(Phase.STORAGE_READ));
+        imageDecodeTime.add(metrics.getTime(Phase.IMAGE_DECODE));
+        binarizationTime.add(metrics.getTime(Phase.BINARIZATION));
+        barcodeDecodeTime.add(metrics.getTime(Phase.BARCODE_DECODE));
+        metadataTime.add(metrics.getTime(Phase.METADATA_READ) + metrics.getTime(Phase.METADATA_WRITE));
+    }
+
+    @Override
+    public long getTickets() {
+        return tickets.sum();
+    }
+
+    @Override
+    public long getImages() {
+        return images.sum();
+    }
+
+    @Override
+    public long getImagesWithBarcode() {
+        return imagesWithBarcode.sum();
+    }
+
+    @Override
+    public long getBarcodes() {
+        return barcodes.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getPrefilterRejected() {
+        return prefilterRejected.sum();
+    }
+
+    @Override
+    public long getPrefilterFalseNegatives() {
+        return prefilterFalseNegatives.sum();
+    }
+
+    @Override
+    public long getNotFound() {
+        return notFound.sum();
+    }
+
+    @Override
+    public long getFormatErrors() {
+        return formatErrors.sum();
+    }
+
+    @Override
+    public long getChecksumErrors() {
+        return checksumErrors.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getTicketMillis() {
+        return ticketTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getPrefilterMillis() {
+        return prefilterTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getStorageReadMillis() {
+        return storageReadTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getImageDecodeMillis() {
+        return imageDecodeTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getBinarizationMillis() {
+        return binarizationTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getBarcodeDecodeMillis() {
+        return barcodeDecodeTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getMetadataMillis() {
+        return metadataTime.sum() / 1000000;
+    }
+
+    @Override
+    public long getMemoryReservedBytes() {
+        return MemoryAdmission.getInstance().getReserved();
+    }
+
+    @Override
+    public long getMemoryRetainedBytes() {
+        return MemoryAdmission.getInstance().getRetained();
+    }
+
+    @Override
+    public int getMemoryReservations() {
+        return MemoryAdmission.getInstance().getReservations();
+    }
+
+    @Override
+    public long getMemoryBudgetBytes() {
+        return MemoryAdmission.getInstance().getBudget();
+    }
+
+    @Override
+    public long getAdmissionWaits() {
+        return MemoryAdmission.getInstance().getWaits();
+    }
+
+    @Override
+    public long getAdmissionWaitMillis() {
+        return MemoryAdmission.getInstance().getWaitTime() / 1000000;
+    }
+
+    @Override
+    public long getImagesDownscaled() {
+        return MemoryAdmission.getInstance().getDownscaled();
+    }
+
+    @Override
+    public double getAverageImageMillis() {
+        long count = images.sum();
+        return count == 0 ? 0 : imageTime.sum() / 1000000d / count;
+    }
+}
@@ -0,0 +1,21 @@
+package org.goobi.api.mq.ticket;
+
+import org.goobi.beans.Process;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.Helper;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Writes the metrics of a ticket as JSON summary into the journal of the process
+ */
+@Log4j
+public class JournalMetricsReporter implements MetricsReporter {
+
+    @Override
+    public void report(Process process, BarcodeMetrics metrics) {
+        String json = metrics.toJson();
+        log.debug(process.getTitel() + ": barcode metrics " + json);
+        Helper.addMessageToProcessJournal(process.getId(), LogType.DEBUG, "Barcode scanner metrics: " + json);
+    }
+}
@@ -0,0 +1,344 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.goobi.api.mq.ticket.BarcodeMetrics.Phase;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Limits the memory all barcode tickets of this JVM use for decoded image pixels. Before the pixels of an image are read, the memory they need is
+ * estimated from the size and bit depth in the image header and reserved against a global budget. The reservation is held until the image is
+ * decoded, so it includes the bit matrix of the binarizer. If the budget is exhausted, the thread waits until other images are done, or, in
+ * downscale mode, reads the image at a lower resolution which fits into the remaining budget. An image which needs more than the whole budget is
+ * read once no other image is reserved.
+ *
+ * The buffers the decoders keep for the next image and the images prefetched into memory are counted against the same budget. Buffers are
+ * counted when they grow and are not admitted, prefetching never waits, images which don't fit are read from the storage when they are decoded.
+ * Both reduce the number of images decoded at the same time, but a thread only waits while other images are decoded, as idle decoders and
+ * prefetched images only release their memory once the waiting threads continue.
+ */
+@Log4j
+public class MemoryAdmission {
+
+    public enum Mode {
+        /**
+         * Wait until enough memory is released
+         */
+        BLOCK,
+        /**
+         * Increase the subsampling until the image fits, wait only if it does not fit at the maximum subsampling either
+         */
+        DOWNSCALE
+    }
+
+    private static final MemoryAdmission instance = new MemoryAdmission();
+
+    /**
+     * Budget in bytes, 0 disables the admission control
+     */
+    private volatile long budget;
+    private Mode mode = Mode.BLOCK;
+    private int maxSubsampling = 1;
+
+    private long reserved;
+    private int reservations;
+
+    /**
+     * Number of reservations of images being read and decoded, memory is only waited for while this is not 0
+     */
+    private int decodes;
+
+    /**
+     * Memory of the buffers kept by the decoders, it is part of reserved
+     */
+    private long retained;
+
+    private final LongAdder waitTime = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder downscaled = new LongAdder();
+
+    /**
+     * Reserved memory of one image, it is released when the reservation is closed
+     */
+    public final class Reservation implements AutoCloseable {
+
+        private long bytes;
+        private final int subsampling;
+        private final long waitTime;
+        private final boolean decoding;
+        private boolean released;
+
+        private Reservation(long bytes, int subsampling, long waitTime, boolean counted, boolean decoding) {
+            this.bytes = bytes;
+            this.subsampling = subsampling;
+            this.waitTime = waitTime;
+            this.decoding = decoding;
+            // without budget nothing was reserved
+            this.released = !counted;
+        }
+
+        /**
+         * Returns the subsampling the image has to be read with, it is larger than the requested one if the image was downscaled
+         *
+         * @return
+         */
+        public int getSubsampling() {
+            return subsampling;
+        }
+
+        /**
+         * Returns the time the thread waited for the memory in nanoseconds
+         *
+         * @return
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Hands memory of this reservation over to the buffers of a decoder which grew while the image was read. The buffers were counted as
+         * retained when they grew, so the memory is no longer counted twice.
+         *
+         * @param grownBytes
+         */
+        public void handOver(long grownBytes) {
+            if (!released && grownBytes > 0) {
+                long handedOver = Math.min(bytes, grownBytes);
+                bytes -= handedOver;
+                shrink(handedOver);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(bytes, decoding);
+            }
+        }
+    }
+
+    private MemoryAdmission() {
+    }
+
+    /**
+     * Returns the admission control of this JVM, it is shared by all tickets
+     *
+     * @return
+     */
+    public static MemoryAdmission getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the budget and the behaviour if it is exhausted. Reservations made before keep their size.
+     *
+     * @param budgetMegabytes 0 disables the admission control
+     * @param mode
+     * @param maxSubsampling the largest subsampling images are downscaled to
+     */
+    public synchronized void configure(int budgetMegabytes, Mode mode, int maxSubsampling) {
+        long newBudget = Math.max(0, budgetMegabytes) * 1024L * 1024L;
+        if (newBudget != budget) {
+            log.info("Memory budget for decoding images set to " + budgetMegabytes + " MB");
+        }
+        budget = newBudget;
+        this.mode = mode;
+        this.maxSubsampling = Math.max(1, maxSubsampling);
+        // waiting threads check the new budget
+        notifyAll();
+    }
+
+    /**
+     * Reserves the memory needed to read and decode an image region at the given subsampling. The calling thread waits until the memory is
+     * available.
+     *
+     * @param width width of the region in pixels at full resolution
+     * @param height height of the region in pixels at full resolution
+     * @param bytesPerPixel memory needed per pixel read, including the converted luminance
+     * @param subsampling requested subsampling
+     * @param metrics the metrics of the ticket, can be null
+     * @return the reservation, it must be closed once the image is decoded
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public Reservation reserve(int width, int height, int bytesPerPixel, int subsampling, BarcodeMetrics metrics) throws InterruptedIOException {
+        return reserve(width, height, bytesPerPixel, subsampling, 0, metrics);
+    }
+
+    /**
+     * Reserves the memory needed to read and decode an image region into a buffer of a decoder
+     *
+     * @param width width of the region in pixels at full resolution
+     * @param height height of the region in pixels at full resolution
+     * @param bytesPerPixel memory needed per pixel read, including the converted luminance
+     * @param subsampling requested subsampling
+     * @param reusableBytes size of the buffer the luminance is written into, it is already counted as retained
+     * @param metrics the metrics of the ticket, can be null
+     * @return the reservation, it must be closed once the image is decoded
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public Reservation reserve(int width, int height, int bytesPerPixel, int subsampling, long reusableBytes, BarcodeMetrics metrics)
+            throws InterruptedIOException {
+        if (budget <= 0) {
+            return new Reservation(0, subsampling, 0, false, false);
+        }
+        long start = System.nanoTime();
+        long elapsed = 0;
+        boolean waited = false;
+        int scale = subsampling;
+        long needed;
+        synchronized (this) {
+            needed = estimate(width, height, bytesPerPixel, scale, reusableBytes);
+            if (mode == Mode.DOWNSCALE) {
+                while (reserved + needed > budget && scale < maxSubsampling) {
+                    scale++;
+                    needed = estimate(width, height, bytesPerPixel, scale, reusableBytes);
+                }
+            }
+            // larger images are read once no other image is decoded
+            try {
+                while (reserved + needed > budget && budget > 0 && decodes > 0) {
+                    waited = true;
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory to decode an image");
+            }
+            reserved += needed;
+            reservations++;
+            decodes++;
+        }
+        if (waited) {
+            elapsed = System.nanoTime() - start;
+            waits.increment();
+            waitTime.add(elapsed);
+            if (metrics != null) {
+                metrics.addTime(Phase.ADMISSION_WAIT, elapsed);
+            }
+        }
+        if (scale != subsampling) {
+            log.debug("Image of " + width + "x" + height + " pixels read at subsampling " + scale + " instead of " + subsampling
+                    + " to fit into the memory budget");
+            downscaled.increment();
+            if (metrics != null) {
+                metrics.addDownscaled();
+            }
+        }
+        return new Reservation(needed, scale, elapsed, true, true);
+    }
+
+    /**
+     * Reserves memory for an image held in memory until it is decoded, without waiting
+     *
+     * @param bytes
+     * @return the reservation, or null if the memory is not available
+     */
+    public Reservation tryReserve(long bytes) {
+        if (budget <= 0) {
+            return new Reservation(0, 1, 0, false, false);
+        }
+        synchronized (this) {
+            if (reserved + bytes > budget) {
+                return null;
+            }
+            reserved += bytes;
+            reservations++;
+        }
+        return new Reservation(bytes, 1, 0, true, false);
+    }
+
+    /**
+     * Counts the growth of a buffer kept by a decoder for the next images, without waiting. Buffers only grow while an image is read, whose memory
+     * was reserved before.
+     *
+     * @param bytes the number of bytes added, negative if buffers were released
+     */
+    public synchronized void retain(long bytes) {
+        reserved += bytes;
+        retained += bytes;
+        if (bytes < 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Estimates the memory needed to read and decode the image: the pixels read, and the bit matrix of the binarizer with one bit per pixel. The
+     * luminance is written into a buffer of the decoder, as far as this buffer is large enough no new memory is needed for it.
+     *
+     * @param width
+     * @param height
+     * @param bytesPerPixel
+     * @param subsampling
+     * @param reusableBytes
+     * @return
+     */
+    private static long estimate(int width, int height, int bytesPerPixel, int subsampling, long reusableBytes) {
+        long pixels = (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+        return pixels * bytesPerPixel + pixels / 8 - Math.min(pixels, reusableBytes);
+    }
+
+    private synchronized void shrink(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    private synchronized void release(long bytes, boolean decoding) {
+        reserved -= bytes;
+        reservations--;
+        if (decoding) {
+            decodes--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the memory currently reserved by all threads
+     *
+     * @return
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Returns the memory of the buffers kept by the decoders of all threads, it is part of the reserved memory
+     *
+     * @return
+     */
+    public synchronized long getRetained() {
+        return retained;
+    }
+
+    /**
+     * Returns the number of images currently reserved
+     *
+     * @return
+     */
+    public synchronized int getReservations() {
+        return reservations;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the time all threads waited for memory in nanoseconds
+     *
+     * @return
+     */
+    public long getWaitTime() {
+        return waitTime.sum();
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getDownscaled() {
+        return downscaled.sum();
+    }
+}
@@ -0,0 +1,17 @@
+package org.goobi.api.mq.ticket;
+
+import org.goobi.beans.Process;
+
+/**
+ * Receives the metrics of every finished barcode ticket. Implementations can publish them to a monitoring system.
+ */
+public interface MetricsReporter {
+
+    /**
+     * Called once when a ticket finished, successful or not
+     *
+     * @param process the process of the ticket
+     * @param metrics
+     */
+    void report(Process process, BarcodeMetrics metrics);
+}
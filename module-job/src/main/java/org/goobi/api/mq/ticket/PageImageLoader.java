@@ -0,0 +1,457 @@
+package org.goobi.api.mq.ticket;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import org.goobi.api.mq.ticket.BarcodeMetrics.Phase;
+import org.goobi.api.mq.ticket.DecodeContext.Slot;
+import org.goobi.api.mq.ticket.MemoryAdmission.Reservation;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Loads page images as luminance sources for the barcode detection. Only the first image of a file is read, the image is streamed through an
+ * {@link ImageReader}, so only the requested region at the requested resolution is decoded. Other images of multipage files are read through the
+ * random access view returned by {@link StreamOpener#openImage()}. If the reader supports it, the image is decoded directly into an 8 bit
+ * grayscale raster which is then used as luminance data without any further copy. Several regions and resolutions of the same image are read
+ * through one {@link PageImage}, which opens the file and parses its header only once.
+ *
+ * With a {@link DecodeContext} the image is decoded into a buffer of the context, which is reused for the next image, and the image readers are
+ * reused as well.
+ *
+ * The pixels are only read once the {@link MemoryAdmission} reserved the memory they need, the image may be read at a lower resolution than
+ * requested to fit into the budget. The memory stays reserved while the region is decoded, until the next region is read or the image is closed.
+ */
+public final class PageImageLoader {
+
+    /**
+     * Opens a new stream of the image file, every call has to return a stream starting at the beginning of the file
+     */
+    @FunctionalInterface
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+
+        /**
+         * Opens a random access stream which contains the image as its first image, it is read instead of the stream returned by {@link #open()}
+         *
+         * @return the stream or null, if the image is read from the beginning of the file
+         * @throws IOException
+         */
+        default ImageInputStream openImage() throws IOException {
+            return null;
+        }
+    }
+
+    private PageImageLoader() {
+    }
+
+    /**
+     * Reads the region of the first image in the file
+     *
+     * @param opener
+     * @param imageName
+     * @param region the area to read, null to read the whole image
+     * @param subsampling only every n-th pixel of every n-th row is read, 1 reads the full resolution
+     * @return
+     * @throws IOException
+     */
+    public static LuminanceSource load(StreamOpener opener, String imageName, ScanRegion region, int subsampling) throws IOException {
+        return load(opener, imageName, region, subsampling, null);
+    }
+
+    /**
+     * Reads the region of the first image in the file and adds the time spent waiting for the storage and decoding the image to the metrics
+     *
+     * @param opener
+     * @param imageName
+     * @param region the area to read, null to read the whole image
+     * @param subsampling only every n-th pixel of every n-th row is read, 1 reads the full resolution
+     * @param metrics the metrics of the ticket, can be null
+     * @return
+     * @throws IOException
+     */
+    public static LuminanceSource load(StreamOpener opener, String imageName, ScanRegion region, int subsampling, BarcodeMetrics metrics)
+            throws IOException {
+        return load(opener, imageName, region, subsampling, metrics, null, null);
+    }
+
+    /**
+     * Reads the region of the first image in the file into a buffer of the context. The returned source is only valid until the next image is
+     * read into the same slot of the context.
+     *
+     * @param opener
+     * @param imageName
+     * @param region the area to read, null to read the whole image
+     * @param subsampling only every n-th pixel of every n-th row is read, 1 reads the full resolution
+     * @param metrics the metrics of the ticket, can be null
+     * @param context the buffers to read the image into, null to allocate new ones
+     * @param slot the buffer of the context to use
+     * @return
+     * @throws IOException
+     */
+    public static LuminanceSource load(StreamOpener opener, String imageName, ScanRegion region, int subsampling, BarcodeMetrics metrics,
+            DecodeContext context, Slot slot) throws IOException {
+        try (PageImage page = open(opener, imageName, metrics, context)) {
+            return page.read(region, subsampling, slot);
+        }
+    }
+
+    /**
+     * Prepares the image for reading several regions or resolutions of it. The file is opened with the first read and all further reads use the
+     * same stream and image reader, so the file is only opened and its header only parsed once.
+     *
+     * @param opener
+     * @param imageName
+     * @param metrics the metrics of the ticket, can be null
+     * @param context the buffers to read the image into, null to allocate new ones
+     * @return the image, it must be closed once all regions are read
+     */
+    public static PageImage open(StreamOpener opener, String imageName, BarcodeMetrics metrics, DecodeContext context) {
+        return new PageImage(opener, imageName, metrics, context);
+    }
+
+    /**
+     * An image file which is read several times, e.g. a scan region and the whole page at different resolutions. The stream is kept open between
+     * the reads, so the image reader can seek back to the pixels. Must only be used by one thread at a time.
+     */
+    public static final class PageImage implements Closeable {
+
+        private final StreamOpener opener;
+        private final String imageName;
+        private final BarcodeMetrics metrics;
+        private final DecodeContext context;
+
+        private TimedInputStream stream;
+        private ImageInputStream iis;
+        private ImageReader imageReader;
+        private int width;
+        private int height;
+        private ImageTypeSpecifier grayType;
+        private int bytesPerPixel;
+
+        /**
+         * Memory of the last region read, it is held until the region is decoded
+         */
+        private Reservation reservation;
+
+        /**
+         * Storage time and bytes read which were already added to the metrics
+         */
+        private long openTime;
+        private long reportedStorageTime;
+        private long reportedBytes;
+
+        private PageImage(StreamOpener opener, String imageName, BarcodeMetrics metrics, DecodeContext context) {
+            this.opener = opener;
+            this.imageName = imageName;
+            this.metrics = metrics;
+            this.context = context;
+        }
+
+        /**
+         * Reads the region of the image. With a context, the returned source is only valid until the next image is read into the same slot. The
+         * memory of the region stays reserved until the next region is read or the image is closed, so it must not be closed before the region is
+         * decoded.
+         *
+         * @param region the area to read, null to read the whole image
+         * @param subsampling only every n-th pixel of every n-th row is read, 1 reads the full resolution
+         * @param slot the buffer of the context to use, ignored without context
+         * @return the luminance or null, if the region is empty
+         * @throws IOException
+         */
+        public LuminanceSource read(ScanRegion region, int subsampling, Slot slot) throws IOException {
+            long start = System.nanoTime();
+            long admissionTime = 0;
+            try {
+                if (imageReader == null) {
+                    openFile();
+                }
+                ImageReadParam param = imageReader.getDefaultReadParam();
+                Rectangle area = new Rectangle(width, height);
+                if (region != null) {
+                    area = region.toPixels(width, height);
+                    if (area == null) {
+                        return null;
+                    }
+                    param.setSourceRegion(area);
+                }
+                // the previous region is decoded, a thread never waits while holding a reservation
+                releaseReservation();
+                // only the header was read so far, the pixels are read once their memory is reserved
+                if (context == null) {
+                    reservation = MemoryAdmission.getInstance().reserve(area.width, area.height, bytesPerPixel, subsampling, metrics);
+                } else {
+                    reservation = MemoryAdmission.getInstance()
+                            .reserve(area.width, area.height, bytesPerPixel, subsampling, context.getBufferLength(slot), metrics);
+                }
+                admissionTime = reservation.getWaitTime();
+                int scale = reservation.getSubsampling();
+                if (scale > 1) {
+                    param.setSourceSubsampling(scale, scale, 0, 0);
+                }
+                if (context != null) {
+                    int bufferLength = context.getBufferLength(slot);
+                    LuminanceSource source = PageImageLoader.read(imageReader, param, area, scale, grayType != null, context, slot);
+                    // the buffer is kept by the context and counted as retained from now on
+                    reservation.handOver(context.getBufferLength(slot) - bufferLength);
+                    return source;
+                }
+                if (grayType != null) {
+                    param.setDestinationType(grayType);
+                }
+                BufferedImage image = imageReader.read(0, param);
+                return new PlanarYUVLuminanceSource(toLuminance(image), image.getWidth(), image.getHeight(), 0, 0, image.getWidth(),
+                        image.getHeight(), false);
+            } finally {
+                addMetrics(start, admissionTime);
+            }
+        }
+
+        /**
+         * Opens the file and reads the header of the image
+         *
+         * @throws IOException
+         */
+        private void openFile() throws IOException {
+            long start = System.nanoTime();
+            ImageInputStream frame = opener.openImage();
+            if (frame == null) {
+                stream = new TimedInputStream(opener.open());
+            }
+            openTime = System.nanoTime() - start;
+            iis = frame != null ? frame : context == null ? ImageIO.createImageInputStream(stream) : new ReusableImageInputStream(stream, context);
+            ImageReader reader = getImageReader(iis, context);
+            if (reader == null) {
+                throw new IOException("No image reader found for file " + imageName);
+            }
+            // the stream must allow seeking back to read further regions, metadata is ignored: only the first image of multipage files is read
+            reader.setInput(iis, false, true);
+            imageReader = reader;
+            width = imageReader.getWidth(0);
+            height = imageReader.getHeight(0);
+            grayType = getGrayscaleType(imageReader);
+            bytesPerPixel = getBytesPerPixel(imageReader, grayType != null);
+        }
+
+        /**
+         * Adds the time spent waiting for the storage and decoding the image since start to the metrics
+         *
+         * @param start
+         * @param admissionTime time spent waiting for memory, it is recorded by the admission control
+         */
+        private void addMetrics(long start, long admissionTime) {
+            if (metrics == null) {
+                return;
+            }
+            long storageTime = openTime;
+            long bytesRead = 0;
+            if (stream != null) {
+                storageTime += stream.getElapsed();
+                bytesRead = stream.getBytesRead();
+            } else if (iis instanceof TiffFrameInputStream) {
+                storageTime += ((TiffFrameInputStream) iis).getElapsed();
+                bytesRead = ((TiffFrameInputStream) iis).getBytesRead();
+            }
+            metrics.addTime(Phase.STORAGE_READ, storageTime - reportedStorageTime);
+            metrics.addTime(Phase.IMAGE_DECODE, System.nanoTime() - start - (storageTime - reportedStorageTime) - admissionTime);
+            metrics.addBytesRead(bytesRead - reportedBytes);
+            reportedStorageTime = storageTime;
+            reportedBytes = bytesRead;
+        }
+
+        private void releaseReservation() {
+            if (reservation != null) {
+                reservation.close();
+                reservation = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseReservation();
+            if (imageReader != null) {
+                if (context == null) {
+                    imageReader.dispose();
+                } else {
+                    // kept by the context for the next file
+                    imageReader.reset();
+                }
+                imageReader = null;
+            }
+            ImageInputStream in = iis;
+            InputStream is = stream;
+            iis = null;
+            stream = null;
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                if (is != null) {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    private static ImageReader getImageReader(ImageInputStream iis, DecodeContext context) throws IOException {
+        if (iis == null) {
+            return null;
+        }
+        if (context != null) {
+            return context.getImageReader(iis);
+        }
+        Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(iis);
+        return imageReaders.hasNext() ? imageReaders.next() : null;
+    }
+
+    /**
+     * Decodes the image into the buffer of the slot. Grayscale images are decoded directly into it, all other images are converted row by row.
+     *
+     * @param imageReader
+     * @param param
+     * @param area the area of the image to read
+     * @param subsampling
+     * @param grayscale true if the reader can decode the image into an 8 bit grayscale raster
+     * @param context
+     * @param slot
+     * @return
+     * @throws IOException
+     */
+    private static LuminanceSource read(ImageReader imageReader, ImageReadParam param, Rectangle area, int subsampling, boolean grayscale,
+            DecodeContext context, Slot slot) throws IOException {
+        // same size as calculated by the image reader for the subsampled region
+        int width = (area.width + subsampling - 1) / subsampling;
+        int height = (area.height + subsampling - 1) / subsampling;
+        BufferedImage destination = null;
+        if (grayscale) {
+            destination = context.getDestination(slot, width, height);
+            param.setDestination(destination);
+        }
+        BufferedImage image = imageReader.read(0, param);
+        if (image != destination || image.getWidth() != width || image.getHeight() != height) {
+            // the reader created its own image
+            width = image.getWidth();
+            height = image.getHeight();
+            toLuminance(image, context.getBuffer(slot, width * height), context.getRgbRow(width));
+        }
+        return context.getSource(slot, width, height);
+    }
+
+    /**
+     * Estimates the memory needed per pixel from the bit depth in the image header: the luminance, and the image created by the reader, if it
+     * cannot decode into the luminance directly
+     *
+     * @param imageReader
+     * @param grayscale true if the image is decoded into the luminance
+     * @return
+     * @throws IOException
+     */
+    private static int getBytesPerPixel(ImageReader imageReader, boolean grayscale) throws IOException {
+        if (grayscale) {
+            return 1;
+        }
+        ImageTypeSpecifier type = imageReader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = imageReader.getImageTypes(0);
+            if (!types.hasNext()) {
+                // unknown layout, assume 32 bit color
+                return 5;
+            }
+            type = types.next();
+        }
+        SampleModel sampleModel = type.getSampleModel(1, 1);
+        int bits = sampleModel instanceof MultiPixelPackedSampleModel ? ((MultiPixelPackedSampleModel) sampleModel).getPixelBitStride()
+                : sampleModel.getNumDataElements() * DataBuffer.getDataTypeSize(sampleModel.getDataType());
+        return 1 + (bits + 7) / 8;
+    }
+
+    /**
+     * Returns the 8 bit grayscale image type, if the reader can decode the first image into it
+     *
+     * @param imageReader
+     * @return
+     * @throws IOException
+     */
+    private static ImageTypeSpecifier getGrayscaleType(ImageReader imageReader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = imageReader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the luminance values of the image, one byte per pixel without padding. The data of 8 bit grayscale images is used directly, all other
+     * images are converted row by row.
+     *
+     * @param image
+     * @return
+     */
+    static byte[] toLuminance(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster raster = image.getRaster();
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            byte[] data = ((DataBufferByte) dataBuffer).getData();
+            if (sampleModel.getPixelStride() == 1 && sampleModel.getScanlineStride() == width && sampleModel.getBandOffsets()[0] == 0
+                    && dataBuffer.getOffset() == 0
+                    && data.length == width * height) {
+                return data;
+            }
+        }
+        byte[] luminance = new byte[width * height];
+        toLuminance(image, luminance, new int[width]);
+        return luminance;
+    }
+
+    /**
+     * Converts the image into luminance values, one byte per pixel without padding
+     *
+     * @param image
+     * @param luminance receives the values, at least width * height bytes long
+     * @param row buffer for one row of pixels, at least width long
+     */
+    static void toLuminance(BufferedImage image, byte[] luminance, int[] row) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                if ((pixel & 0xFF000000) == 0) {
+                    // fully transparent pixels are treated as white
+                    luminance[offset + x] = (byte) 0xFF;
+                } else {
+                    // same weights as BufferedImageLuminanceSource
+                    luminance[offset + x] = (byte) ((306 * ((pixel >> 16) & 0xFF) + 601 * ((pixel >> 8) & 0xFF) + 117 * (pixel & 0xFF) + 0x200) >> 10);
+                }
+            }
+        }
+    }
+}
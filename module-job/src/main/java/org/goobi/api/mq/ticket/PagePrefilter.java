@@ -0,0 +1,57 @@
+package org.goobi.api.mq.ticket;
+
+import com.google.zxing.common.BitMatrix;
+
+import lombok.Getter;
+
+/**
+ * Cheap check which runs on a downsampled image before the barcode readers. Pages without a stretch of bars and without QR finder patterns are not
+ * decoded at all. In verify mode rejected pages are decoded anyway, so pages with barcodes the prefilter missed can be counted and the settings
+ * calibrated.
+ */
+@Getter
+public class PagePrefilter {
+
+    /**
+     * Subsampling factor of the image the check runs on
+     */
+    private final int subsampling;
+
+    /**
+     * Minimal number of black/white transitions in a stretch of bars
+     */
+    private final int minTransitions;
+
+    /**
+     * true if QR finder patterns are searched as well
+     */
+    private final boolean finderPatterns;
+
+    /**
+     * true if rejected pages are decoded anyway to find false negatives
+     */
+    private final boolean verify;
+
+    public PagePrefilter(int subsampling, int minTransitions, boolean finderPatterns, boolean verify) {
+        this.subsampling = Math.max(1, subsampling);
+        this.minTransitions = Math.max(2, minTransitions);
+        this.finderPatterns = finderPatterns;
+        this.verify = verify;
+    }
+
+    /**
+     * Checks if the binarized image may contain a barcode
+     *
+     * @param matrix the downsampled and binarized image
+     * @return false if the image certainly contains no barcode
+     */
+    public boolean accepts(BitMatrix matrix) {
+        return BarcodeSignature.hasVerticalBars(matrix, minTransitions) || BarcodeSignature.hasHorizontalBars(matrix, minTransitions)
+                || finderPatterns && BarcodeSignature.hasFinderPatterns(matrix);
+    }
+
+    @Override
+    public String toString() {
+        return "subsampling=" + subsampling + ",minTransitions=" + minTransitions + ",finderPatterns=" + finderPatterns;
+    }
+}
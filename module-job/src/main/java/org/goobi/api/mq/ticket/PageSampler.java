@@ -0,0 +1,100 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Getter;
+
+/**
+ * Decides which images are decoded at all, for workflows where separator sheets can only appear at known positions. Images which are not sampled
+ * still get a page, but no barcodes, so they stay in the multipage structure element started before them.
+ */
+@Getter
+public class PageSampler {
+
+    public enum Mode {
+        /**
+         * Every n-th image, starting with the image at the offset
+         */
+        INTERVAL,
+        /**
+         * Recto pages only, which are the images with odd page numbers
+         */
+        RECTO,
+        /**
+         * The first image of each group of images whose names start with the same prefix
+         */
+        GROUP_START,
+        /**
+         * Images whose names contain a match of the pattern
+         */
+        PATTERN
+    }
+
+    private final Mode mode;
+
+    /**
+     * Distance of the sampled images in INTERVAL mode
+     */
+    private final int interval;
+
+    /**
+     * Index of the first sampled image in INTERVAL mode, starting with 0
+     */
+    private final int offset;
+
+    /**
+     * In GROUP_START mode the first group of the pattern is the prefix of the image name, in PATTERN mode the image is sampled if its name contains
+     * a match
+     */
+    private final Pattern pattern;
+
+    public PageSampler(Mode mode, int interval, int offset, Pattern pattern) {
+        this.mode = mode;
+        this.interval = Math.max(1, interval);
+        this.offset = Math.max(0, offset);
+        this.pattern = pattern;
+    }
+
+    /**
+     * Checks if the image at the index is decoded
+     *
+     * @param imageNames all images of the process in file order
+     * @param index
+     * @return
+     */
+    public boolean isSampled(List<String> imageNames, int index) {
+        switch (mode) {
+            case INTERVAL:
+                return index >= offset && (index - offset) % interval == 0;
+            case RECTO:
+                return index % 2 == 0;
+            case GROUP_START:
+                return index == 0 || !getPrefix(imageNames.get(index)).equals(getPrefix(imageNames.get(index - 1)));
+            case PATTERN:
+                return pattern.matcher(imageNames.get(index)).find();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the part of the image name which identifies its group, the whole name if the pattern does not match
+     *
+     * @param imageName
+     * @return
+     */
+    private String getPrefix(String imageName) {
+        Matcher matcher = pattern.matcher(imageName);
+        if (!matcher.find()) {
+            return imageName;
+        }
+        return matcher.groupCount() > 0 && matcher.group(1) != null ? matcher.group(1) : matcher.group();
+    }
+
+    @Override
+    public String toString() {
+        return "mode=" + mode + ",interval=" + interval + ",offset=" + offset + ",pattern=" + pattern;
+    }
+}
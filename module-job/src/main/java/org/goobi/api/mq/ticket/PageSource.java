@@ -0,0 +1,353 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import org.goobi.api.mq.ticket.PageImageLoader.StreamOpener;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * The pages of a process in file order. Every image file is one page, unless multipage files are enabled: then every image of a multipage TIFF
+ * file is a page of its own, named after the file and the number of the image, e.g. volume.tif#3. Only the directories of a multipage file are
+ * read to find its images. Each image is read on its own through a {@link TiffFrameInputStream}, so neither the whole file nor the images before
+ * it are held in memory. Multipage files on other storage than the local file system are downloaded once into a temporary file, which is deleted
+ * when the source is closed. If multipage files are disabled, the files are not opened at all. BigTIFF and PDF files are not split into pages.
+ */
+@Log4j
+public class PageSource implements Closeable {
+
+    /**
+     * Separates the file name and the number of the image, counted from 1, in the names of pages of multipage files
+     */
+    public static final char FRAME_SEPARATOR = '#';
+
+    /**
+     * Stops following the directory chain of damaged files
+     */
+    private static final int MAX_FRAMES = 100000;
+
+    private static final int TIFF_MAGIC = 42;
+    private static final int BIG_TIFF_MAGIC = 43;
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+    private static final int TYPE_SHORT = 3;
+
+    private final String foldername;
+    private final List<String> pageNames = new ArrayList<>();
+
+    /**
+     * Position of the image in its file for all pages of multipage files
+     */
+    private final Map<String, Frame> frames = new HashMap<>();
+
+    /**
+     * Local copies of multipage files on other storage
+     */
+    private final Map<Path, Path> localCopies = new HashMap<>();
+
+    private static class Frame {
+        private final String fileName;
+        private final int number;
+        private final boolean bigEndian;
+        private final long offset;
+
+        private Frame(String fileName, int number, boolean bigEndian, long offset) {
+            this.fileName = fileName;
+            this.number = number;
+            this.bigEndian = bigEndian;
+            this.offset = offset;
+        }
+    }
+
+    private PageSource(String foldername) {
+        this.foldername = foldername;
+    }
+
+    /**
+     * Creates the pages of the image files
+     *
+     * @param foldername
+     * @param fileNames the image files in file order
+     * @param multipageFiles true to create one page for every image of multipage TIFF files, false to create one page per file
+     * @return
+     */
+    public static PageSource create(String foldername, List<String> fileNames, boolean multipageFiles) {
+        PageSource source = new PageSource(foldername);
+        for (String fileName : fileNames) {
+            if (multipageFiles && isTiff(fileName)) {
+                source.addFrames(fileName);
+            } else {
+                if (multipageFiles && fileName.toLowerCase(Locale.ROOT).endsWith(".pdf")) {
+                    log.warn("File " + fileName + " is a PDF file, PDF files are not supported as multipage files and are not split into pages");
+                }
+                source.pageNames.add(fileName);
+            }
+        }
+        return source;
+    }
+
+    private static boolean isTiff(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".tif") || name.endsWith(".tiff");
+    }
+
+    /**
+     * Adds one page for every full resolution image of the file, or a single page if the file only contains one image or cannot be read
+     *
+     * @param fileName
+     */
+    private void addFrames(String fileName) {
+        Path path = Paths.get(foldername, fileName);
+        List<Long> offsets = Collections.emptyList();
+        boolean bigEndian = false;
+        try (ImageInputStream iis = openDirectories(path)) {
+            int byteOrder = iis.readUnsignedShort();
+            bigEndian = byteOrder == 0x4D4D;
+            iis.setByteOrder(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            int magic = bigEndian || byteOrder == 0x4949 ? iis.readUnsignedShort() : 0;
+            if (magic == TIFF_MAGIC) {
+                offsets = readImageDirectories(iis, iis.readUnsignedInt());
+            } else if (magic == BIG_TIFF_MAGIC) {
+                log.warn("File " + fileName + " is a BigTIFF file, BigTIFF files are not supported as multipage files and are not split into pages");
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read the images of file " + fileName + ", only the first image is decoded", e);
+        }
+        if (offsets.size() < 2) {
+            pageNames.add(fileName);
+            return;
+        }
+        log.debug("File " + fileName + " contains " + offsets.size() + " images");
+        for (int index = 0; index < offsets.size(); index++) {
+            String pageName = fileName + FRAME_SEPARATOR + (index + 1);
+            pageNames.add(pageName);
+            frames.put(pageName, new Frame(fileName, index + 1, bigEndian, offsets.get(index)));
+        }
+    }
+
+    /**
+     * Follows the chain of image file directories and returns the positions of the directories of all full resolution images. Reduced resolution
+     * versions like thumbnails are skipped.
+     *
+     * @param iis
+     * @param offset position of the first directory
+     * @return
+     * @throws IOException
+     */
+    private static List<Long> readImageDirectories(ImageInputStream iis, long offset) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        Set<Long> visited = new HashSet<>();
+        long next = offset;
+        while (next != 0 && visited.size() < MAX_FRAMES && visited.add(next)) {
+            iis.seek(next);
+            int entries = iis.readUnsignedShort();
+            boolean reduced = false;
+            for (int entry = 0; entry < entries; entry++) {
+                iis.seek(next + 2 + 12L * entry);
+                if (iis.readUnsignedShort() == TAG_NEW_SUBFILE_TYPE) {
+                    int type = iis.readUnsignedShort();
+                    iis.skipBytes(4);
+                    long subfileType = type == TYPE_SHORT ? iis.readUnsignedShort() : iis.readUnsignedInt();
+                    reduced = (subfileType & 1) != 0;
+                    break;
+                }
+            }
+            if (!reduced) {
+                offsets.add(next);
+            }
+            iis.seek(next + 2 + 12L * entries);
+            next = iis.readUnsignedInt();
+        }
+        return offsets;
+    }
+
+    /**
+     * Opens the file to read its image directories. Local files are read directly, files on other storage are cached in a temporary file as far as
+     * they are read, as most files only contain one image and are not read again.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private static ImageInputStream openDirectories(Path path) throws IOException {
+        if (FileSystems.getDefault().equals(path.getFileSystem()) && Files.isRegularFile(path)) {
+            return new FileImageInputStream(path.toFile());
+        }
+        InputStream in = StorageProvider.getInstance().newInputStream(path);
+        try {
+            return new FileCacheImageInputStream(in, ImageIO.getCacheDirectory()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        in.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a multipage file for random access. Local files are read directly, files on other storage are read from their local copy, so the file
+     * is only transferred once for all its images.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private ImageInputStream openRandomAccess(Path path) throws IOException {
+        if (FileSystems.getDefault().equals(path.getFileSystem()) && Files.isRegularFile(path)) {
+            return new FileImageInputStream(path.toFile());
+        }
+        return new FileImageInputStream(getLocalCopy(path).toFile());
+    }
+
+    /**
+     * Returns the local copy of a file on other storage, the file is downloaded when it is needed for the first time
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private synchronized Path getLocalCopy(Path path) throws IOException {
+        Path localCopy = localCopies.get(path);
+        if (localCopy == null) {
+            localCopy = Files.createTempFile("barcode_", ".tif");
+            try (InputStream in = StorageProvider.getInstance().newInputStream(path)) {
+                Files.copy(in, localCopy, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Files.deleteIfExists(localCopy);
+                throw e;
+            }
+            localCopies.put(path, localCopy);
+        }
+        return localCopy;
+    }
+
+    /**
+     * Deletes the local copies of multipage files
+     */
+    @Override
+    public synchronized void close() {
+        for (Path localCopy : localCopies.values()) {
+            try {
+                Files.deleteIfExists(localCopy);
+            } catch (IOException e) {
+                log.warn("Unable to delete temporary file " + localCopy, e);
+            }
+        }
+        localCopies.clear();
+    }
+
+    /**
+     * Returns the names of all pages in file order
+     *
+     * @return
+     */
+    public List<String> getPageNames() {
+        return pageNames;
+    }
+
+    /**
+     * Checks if any page is one of the images of a multipage file
+     *
+     * @return
+     */
+    public boolean hasFrames() {
+        return !frames.isEmpty();
+    }
+
+    /**
+     * Checks if the page is one of the images of a multipage file
+     *
+     * @param pageName
+     * @return
+     */
+    public boolean isFrame(String pageName) {
+        return frames.containsKey(pageName);
+    }
+
+    /**
+     * Returns the name of the file containing the page
+     *
+     * @param pageName
+     * @return
+     */
+    public String getFileName(String pageName) {
+        Frame frame = frames.get(pageName);
+        return frame == null ? pageName : frame.fileName;
+    }
+
+    /**
+     * Returns the number of the image of the page in its multipage file
+     *
+     * @param pageName
+     * @return the number counted from 1, or 0 if the page is not part of a multipage file
+     */
+    public int getFrameNumber(String pageName) {
+        Frame frame = frames.get(pageName);
+        return frame == null ? 0 : frame.number;
+    }
+
+    /**
+     * Returns the file containing the page
+     *
+     * @param pageName
+     * @return
+     */
+    public Path getPath(String pageName) {
+        Frame frame = frames.get(pageName);
+        return Paths.get(foldername, frame == null ? pageName : frame.fileName);
+    }
+
+    /**
+     * Returns an opener for the page. For pages of multipage files, {@link StreamOpener#openImage()} returns a view of the file which only contains
+     * the image of the page.
+     *
+     * @param pageName
+     * @return
+     */
+    public StreamOpener getOpener(String pageName) {
+        Path path = getPath(pageName);
+        Frame frame = frames.get(pageName);
+        if (frame == null) {
+            return () -> StorageProvider.getInstance().newInputStream(path);
+        }
+        return new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return StorageProvider.getInstance().newInputStream(path);
+            }
+
+            @Override
+            public ImageInputStream openImage() throws IOException {
+                return new TiffFrameInputStream(openRandomAccess(path), frame.bigEndian, frame.offset);
+            }
+        };
+    }
+}
@@ -0,0 +1,110 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Image input stream which caches the bytes read from the file in the stream buffer of a {@link DecodeContext}, instead of allocating new cache
+ * blocks or a temporary file for every image. The file is only read as far as the image reader needs it. Bytes before the flushed position are
+ * discarded when the buffer is full, before it grows. The buffer is reused for the next image, so the stream must be closed before the next image
+ * is read with the same context.
+ */
+class ReusableImageInputStream extends ImageInputStreamImpl {
+
+    private static final int MAX_BUFFER_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final InputStream in;
+    private final DecodeContext context;
+    private byte[] buffer;
+    /**
+     * Stream position of the first byte in the buffer
+     */
+    private long base;
+    private int length;
+    private boolean endOfFile;
+
+    ReusableImageInputStream(InputStream in, DecodeContext context) {
+        this.in = in;
+        this.context = context;
+        this.buffer = context.getStreamBuffer(0, 0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!fill(streamPos + 1)) {
+            return -1;
+        }
+        return buffer[(int) (streamPos++ - base)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        fill(streamPos + len);
+        int available = (int) Math.min(len, base + length - streamPos);
+        if (available <= 0) {
+            return -1;
+        }
+        System.arraycopy(buffer, (int) (streamPos - base), b, off, available);
+        streamPos += available;
+        return available;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        buffer = null;
+        context.trimStreamBuffer();
+    }
+
+    /**
+     * Reads from the file until the buffer contains the bytes up to the stream position end or the file ends
+     *
+     * @param end
+     * @return true if the buffer contains the byte before end
+     * @throws IOException
+     */
+    private boolean fill(long end) throws IOException {
+        while (base + length < end && !endOfFile) {
+            if (length == buffer.length) {
+                discardFlushedBytes();
+            }
+            if (length == buffer.length) {
+                if (length >= MAX_BUFFER_LENGTH) {
+                    throw new IOException("Unable to cache more than " + MAX_BUFFER_LENGTH + " bytes of the image file");
+                }
+                buffer = context.getStreamBuffer((int) Math.max(8192, Math.min(MAX_BUFFER_LENGTH, (long) length * 2)), length);
+            }
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                endOfFile = true;
+            } else {
+                length += read;
+            }
+        }
+        return base + length >= end;
+    }
+
+    /**
+     * Moves the bytes after the flushed position to the beginning of the buffer, the image reader won't seek back before it
+     */
+    private void discardFlushedBytes() {
+        int discard = (int) Math.min(length, flushedPos - base);
+        if (discard > 0) {
+            System.arraycopy(buffer, discard, buffer, 0, length - discard);
+            length -= discard;
+            base += discard;
+        }
+    }
+}
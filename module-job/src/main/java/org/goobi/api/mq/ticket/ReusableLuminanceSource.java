@@ -0,0 +1,51 @@
+package org.goobi.api.mq.ticket;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Luminance source on a buffer of a {@link DecodeContext}, which is reused for the next page. The buffer contains the luminance of the page row by
+ * row without padding, but it can be longer than the page, as it is only enlarged and never shrunk. The source must not be used any more once the
+ * next image was read into the same buffer.
+ */
+class ReusableLuminanceSource extends LuminanceSource {
+
+    private final byte[] luminance;
+
+    ReusableLuminanceSource(byte[] luminance, int width, int height) {
+        super(width, height);
+        if (luminance.length < width * height) {
+            throw new IllegalArgumentException("Buffer is smaller than the image");
+        }
+        this.luminance = luminance;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        byte[] result = row == null || row.length < width ? new byte[width] : row;
+        System.arraycopy(luminance, y * width, result, 0, width);
+        return result;
+    }
+
+    /**
+     * Returns the buffer itself without copying it, the binarizers only read the first width * height bytes
+     */
+    @Override
+    public byte[] getMatrix() {
+        return luminance;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new PlanarYUVLuminanceSource(luminance, getWidth(), getHeight(), left, top, width, height, false);
+    }
+}
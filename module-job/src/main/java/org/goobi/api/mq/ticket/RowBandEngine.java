@@ -0,0 +1,106 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.oned.MultiFormatOneDReader;
+
+/**
+ * Searches one dimensional barcodes in a few bands of rows spread evenly over the page, instead of scanning rows from the middle of the page
+ * outwards like the ZXing readers do. Each band consists of a few rows close to each other, so a code is still found if one of its rows is damaged.
+ * The rows are read in both directions, so codes printed upside down are found as well. With TRY_HARDER more bands are searched. Only codes
+ * crossing one of the bands are found, which is enough for separator sheets with a large barcode, but not for small codes at arbitrary positions.
+ */
+class RowBandEngine implements DecoderEngine {
+
+    // at 300 dpi the bands of an A4 page are about 2.5 cm apart, less than the height of a common 1D code
+    private static final int FAST_BANDS = 12;
+    private static final int HARD_BANDS = 36;
+    private static final int ROWS_PER_BAND = 3;
+
+    private final MultiFormatOneDReader reader;
+    private final Map<DecodeHintType, Object> hints;
+    private final int bands;
+    private BitArray row;
+
+    RowBandEngine(Map<DecodeHintType, Object> hints) {
+        this.reader = new MultiFormatOneDReader(hints);
+        this.hints = hints;
+        this.bands = Boolean.TRUE.equals(hints.get(DecodeHintType.TRY_HARDER)) ? HARD_BANDS : FAST_BANDS;
+    }
+
+    @Override
+    public List<Result> decode(BinaryBitmap image, boolean multiple) throws NotFoundException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // rows of a band are about half a millimeter apart at 300 dpi
+        int rowDistance = Math.max(1, height / 500);
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (int band = 0; band < bands; band++) {
+            int center = (2 * band + 1) * height / (2 * bands);
+            for (int index = 0; index < ROWS_PER_BAND; index++) {
+                int y = center + (index - ROWS_PER_BAND / 2) * rowDistance;
+                if (y < 0 || y >= height) {
+                    continue;
+                }
+                try {
+                    row = image.getBlackRow(y, row);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                Result result = null;
+                for (int attempt = 0; attempt < 2 && result == null; attempt++) {
+                    if (attempt == 1) {
+                        row.reverse();
+                    }
+                    try {
+                        result = reader.decodeRow(y, row, hints);
+                        if (attempt == 1) {
+                            mirror(result, width);
+                        }
+                    } catch (NotFoundException e) {
+                        // try the reversed row, unreadable codes are reported as not found by the reader as well
+                    }
+                }
+                if (result != null) {
+                    if (!multiple) {
+                        return Collections.singletonList(result);
+                    }
+                    results.putIfAbsent(result.getText(), result);
+                    // the other rows of the band cross the same code
+                    break;
+                }
+            }
+        }
+        if (results.isEmpty()) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    /**
+     * Moves the points of a code found in a reversed row to their position in the page
+     *
+     * @param result
+     * @param width
+     */
+    private static void mirror(Result result, int width) {
+        result.putMetadata(ResultMetadataType.ORIENTATION, 180);
+        ResultPoint[] points = result.getResultPoints();
+        if (points != null) {
+            for (int index = 0; index < points.length; index++) {
+                points[index] = new ResultPoint(width - points[index].getX() - 1, points[index].getY());
+            }
+        }
+    }
+}
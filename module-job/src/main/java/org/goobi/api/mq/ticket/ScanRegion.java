@@ -0,0 +1,63 @@
+package org.goobi.api.mq.ticket;
+
+import java.awt.Rectangle;
+
+import lombok.Getter;
+
+/**
+ * A rectangular area of a page in which barcodes are expected. All values are relative to the size of the page, so the same region can be used for
+ * images of any resolution.
+ */
+@Getter
+public class ScanRegion {
+
+    private final double x;
+    private final double y;
+    private final double width;
+    private final double height;
+
+    /**
+     * Name of the top logical structure element this region is used for, null if the region is used for all processes
+     */
+    private final String parentStruct;
+
+    public ScanRegion(double x, double y, double width, double height, String parentStruct) {
+        this.x = clamp(x);
+        this.y = clamp(y);
+        this.width = clamp(width);
+        this.height = clamp(height);
+        this.parentStruct = parentStruct;
+    }
+
+    /**
+     * Checks if this region is configured for processes with the given top structure element
+     *
+     * @param structName
+     * @return
+     */
+    public boolean matches(String structName) {
+        return parentStruct == null || parentStruct.isEmpty() || parentStruct.equals(structName);
+    }
+
+    /**
+     * Calculates the pixel area of this region for an image of the given size
+     *
+     * @param imageWidth
+     * @param imageHeight
+     * @return the area or null, if the region is empty for this image size
+     */
+    public Rectangle toPixels(int imageWidth, int imageHeight) {
+        int left = (int) Math.floor(x * imageWidth);
+        int top = (int) Math.floor(y * imageHeight);
+        int right = Math.min(imageWidth, (int) Math.ceil((x + width) * imageWidth));
+        int bottom = Math.min(imageHeight, (int) Math.ceil((y + height) * imageHeight));
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0d, Math.min(1d, value));
+    }
+}
@@ -0,0 +1,323 @@
+package org.goobi.api.mq.ticket;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.SystemUtils;
+
+import com.google.zxing.Result;
+
+import lombok.extern.log4j.Log4j;
+import ugh.dl.ContentFile;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.TypeNotAllowedAsChildException;
+import ugh.exceptions.TypeNotAllowedForParentException;
+
+/**
+ * Creates the pagination and the logical structure elements of a process from the barcodes detected on its images. The pages have to be added in
+ * file order, as a multipage structure element started on one page continues on the following pages until another one starts or the configured
+ * terminator is found. New pages can be inserted between existing pages, see {@link #insertAt(int)}.
+ */
+@Log4j
+public class StructureBuilder {
+    private static final String LOGICAL_PHYSICAL = "logical_physical";
+
+    private final Prefs prefs;
+    private final DigitalDocument digDoc;
+    private final DocStruct logical;
+    private final DocStruct physical;
+    private final String foldername;
+
+    private final boolean docByType;
+    private final String uuidMetadata;
+    private final BarcodeMatcher docstructMatcher;
+    private final Map<String, String> docstructMapType;
+    private final BarcodeMatcher multiPageDocstructMatcher;
+    private final Map<String, String> multiPageDocstructMapType;
+
+    private final DocStructType pageType;
+    private final MetadataType physType;
+    private final MetadataType logType;
+
+    /**
+     * Stores the number of the image in its file for pages of multipage files, null if there are none
+     */
+    private MetadataType frameType;
+
+    /**
+     * The multipage structure element the next page belongs to, null if it does not belong to any
+     */
+    private DocStruct currentMultiPageDS = null;
+
+    /**
+     * Position in the logical structure where the next structure element is inserted, -1 appends it
+     */
+    private int structurePosition = -1;
+
+    public StructureBuilder(Prefs prefs, DigitalDocument digDoc, DocStruct logical, DocStruct physical, String foldername, boolean docByType,
+            String uuidMetadata, BarcodeMatcher docstructMatcher, Map<String, String> docstructMapType,
+            BarcodeMatcher multiPageDocstructMatcher, Map<String, String> multiPageDocstructMapType) {
+        this.prefs = prefs;
+        this.digDoc = digDoc;
+        this.logical = logical;
+        this.physical = physical;
+        this.foldername = foldername;
+        this.docByType = docByType;
+        this.uuidMetadata = uuidMetadata;
+        this.docstructMatcher = docstructMatcher;
+        this.docstructMapType = docstructMapType;
+        this.multiPageDocstructMatcher = multiPageDocstructMatcher;
+        this.multiPageDocstructMapType = multiPageDocstructMapType;
+        pageType = prefs.getDocStrctTypeByName("page");
+        physType = prefs.getMetadataTypeByName("physPageNumber");
+        logType = prefs.getMetadataTypeByName("logicalPageNumber");
+    }
+
+    /**
+     * Sets the metadata which stores the number of the image in its file for pages of multipage files
+     *
+     * @param frameType
+     */
+    public void setFrameType(MetadataType frameType) {
+        this.frameType = frameType;
+    }
+
+    /**
+     * Continues an existing multipage structure element, the next pages are added to it until another multipage structure element starts
+     *
+     * @param multiPageDS the structure element or null
+     */
+    public void continueMultiPageStructure(DocStruct multiPageDS) {
+        currentMultiPageDS = multiPageDS;
+    }
+
+    /**
+     * Inserts the structure elements of the following pages at this position of the logical structure instead of appending them. Used to add
+     * pages between existing pages, whose structure elements come after them.
+     *
+     * @param structureIndex position of the next structure element in the children of the logical structure
+     */
+    public void insertAt(int structureIndex) {
+        structurePosition = structureIndex;
+    }
+
+    /**
+     * Sets the physical page number of all pages to their position in the pagination, needed after pages were inserted between existing pages
+     *
+     * @throws MetadataTypeNotAllowedException
+     */
+    public void renumberPages() throws MetadataTypeNotAllowedException {
+        List<DocStruct> pages = physical.getAllChildren();
+        if (pages == null) {
+            return;
+        }
+        for (int index = 0; index < pages.size(); index++) {
+            List<? extends Metadata> physPageNumbers = pages.get(index).getAllMetadataByType(physType);
+            if (physPageNumbers == null || physPageNumbers.isEmpty()) {
+                Metadata mdPhysPageNo = new Metadata(physType);
+                mdPhysPageNo.setValue(String.valueOf(index + 1));
+                pages.get(index).addMetadata(mdPhysPageNo);
+            } else {
+                physPageNumbers.get(0).setValue(String.valueOf(index + 1));
+            }
+        }
+    }
+
+    /**
+     * Creates the page for the image and adds it to the structure elements matching the detected barcodes
+     *
+     * @param index position of the image in the image folder, starting with 0
+     * @param imageName
+     * @param detectedBarcode
+     * @return the created page
+     * @throws TypeNotAllowedForParentException
+     * @throws TypeNotAllowedAsChildException
+     * @throws MetadataTypeNotAllowedException
+     */
+    public DocStruct addPage(int index, String imageName, List<Result> detectedBarcode)
+            throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
+        return addPage(index, imageName, imageName, 0, detectedBarcode);
+    }
+
+    /**
+     * Creates the page for an image of a multipage file and adds it to the structure elements matching the detected barcodes. The page refers to
+     * the file, the number of the image is stored in the frame metadata.
+     *
+     * @param index position of the page, starting with 0. The page is inserted before an existing page at this position.
+     * @param imageName name of the page
+     * @param fileName the file containing the image
+     * @param frameNumber number of the image in the file counted from 1, 0 if the file only contains this image
+     * @param detectedBarcode
+     * @return the created page
+     * @throws TypeNotAllowedForParentException
+     * @throws TypeNotAllowedAsChildException
+     * @throws MetadataTypeNotAllowedException
+     */
+    public DocStruct addPage(int index, String imageName, String fileName, int frameNumber, List<Result> detectedBarcode)
+            throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
+        DocStruct dsPage = digDoc.createDocStruct(pageType);
+
+        ContentFile cf = new ContentFile();
+        if (SystemUtils.IS_OS_WINDOWS) {
+            cf.setLocation("file:/" + foldername + fileName);
+        } else {
+            cf.setLocation("file://" + foldername + fileName);
+        }
+        dsPage.addContentFile(cf);
+
+        List<DocStruct> pages = physical.getAllChildren();
+        if (pages != null && index < pages.size()) {
+            physical.addChild(index, dsPage);
+        } else {
+            physical.addChild(dsPage);
+        }
+        Metadata mdPhysPageNo = new Metadata(physType);
+        mdPhysPageNo.setValue(String.valueOf(index + 1));
+        dsPage.addMetadata(mdPhysPageNo);
+
+        Metadata mdLogicalPageNo = new Metadata(logType);
+        dsPage.addMetadata(mdLogicalPageNo);
+
+        if (frameNumber > 0 && frameType != null) {
+            Metadata mdFrame = new Metadata(frameType);
+            mdFrame.setValue(String.valueOf(frameNumber));
+            dsPage.addMetadata(mdFrame);
+        }
+        logical.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+
+        if (docByType) {
+            generateDocStructsFromType(imageName, dsPage, detectedBarcode);
+        } else {
+            generateDocStructsFromString(imageName, dsPage, detectedBarcode);
+        }
+        return dsPage;
+    }
+
+    /**
+     * Generates the doc struct elements in logical according to the detectedBarcode(s)
+     *
+     * @param imageName
+     * @param dsPage
+     * @param detectedBarcode
+     * @throws TypeNotAllowedForParentException
+     * @throws TypeNotAllowedAsChildException
+     * @throws MetadataTypeNotAllowedException
+     */
+    private void generateDocStructsFromString(String imageName, DocStruct dsPage, List<Result> detectedBarcode)
+            throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
+        for (Result barcode : detectedBarcode) {
+            String barcodeString = String.valueOf(barcode);
+            log.debug("Barcode found in image " + imageName + " " + barcodeString);
+            // check if the barcode matches a single page doc struct, if so add it
+            String docstructName = docstructMatcher.match(barcodeString);
+            if (docstructName != null) {
+                log.debug("Barcode " + barcodeString + " is associated with doc struct " + docstructName);
+                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
+                if (docStructType == null) {
+                    log.debug("DocStructType " + docstructName + "not found in ruleset");
+                } else {
+                    DocStruct ds = digDoc.createDocStruct(docStructType);
+                    addBarcodeMetadatum(barcode, ds);
+                    addStructure(ds);
+                    ds.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+                }
+            }
+            // check if the barcode matches a multipage structure, if so generate and add it to the logical structure, pages are added later
+            docstructName = multiPageDocstructMatcher.match(barcodeString);
+            if (docstructName != null) {
+                if ("DocStructEnd".equals(docstructName)) {
+                    currentMultiPageDS = null;
+                    continue;
+                }
+                log.debug("Barcode " + barcodeString + " is associated with doc struct " + docstructName);
+                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
+                if (docStructType == null) {
+                    log.debug("DocStructType " + docstructName + "not found in ruleset");
+                } else {
+                    currentMultiPageDS = digDoc.createDocStruct(docStructType);
+                    addStructure(currentMultiPageDS);
+                    addBarcodeMetadatum(barcode, currentMultiPageDS);
+                }
+            }
+        }
+        // if currentMultiPageDS is set, all current pages are meant to belong to that multi page structure, so add this one
+        if (currentMultiPageDS != null) {
+            currentMultiPageDS.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+        }
+    }
+
+    /**
+     * Generates the doc struct elements in logical according to the detectedBarcode(s)
+     *
+     * @param imageName
+     * @param dsPage
+     * @param detectedBarcode
+     * @throws TypeNotAllowedForParentException
+     * @throws TypeNotAllowedAsChildException
+     * @throws MetadataTypeNotAllowedException
+     */
+    private void generateDocStructsFromType(String imageName, DocStruct dsPage, List<Result> detectedBarcode)
+            throws TypeNotAllowedForParentException, TypeNotAllowedAsChildException, MetadataTypeNotAllowedException {
+        for (Result barcode : detectedBarcode) {
+            String barcodeType = barcode.getBarcodeFormat().toString();
+            log.debug("Barcode found in image " + imageName + " " + barcodeType);
+            // check if the barcode matches a single page doc struct, if so add it
+            if (docstructMapType.containsKey(barcodeType)) {
+                String docstructName = docstructMapType.get(barcodeType);
+                log.debug("Barcode " + barcodeType + " is associated with doc struct " + docstructName);
+                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
+                if (docStructType == null) {
+                    log.debug("DocStructType " + docstructName + "not found in ruleset");
+                } else {
+                    DocStruct ds = digDoc.createDocStruct(docStructType);
+                    addBarcodeMetadatum(barcode, ds);
+                    addStructure(ds);
+                    ds.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+                }
+            }
+            // check if the barcode matches a multipage structure, if so generate and add it to the logical structure, pages are added later
+            if (multiPageDocstructMapType.containsKey(barcodeType)) {
+                String docstructName = multiPageDocstructMapType.get(barcodeType);
+                if ("DocStructEnd".equals(docstructName)) {
+                    currentMultiPageDS = null;
+                    continue;
+                }
+                log.debug("Barcode " + barcodeType + " is associated with doc struct " + docstructName);
+                DocStructType docStructType = prefs.getDocStrctTypeByName(docstructName);
+                if (docStructType == null) {
+                    log.debug("DocStructType " + docstructName + "not found in ruleset");
+                } else {
+                    currentMultiPageDS = digDoc.createDocStruct(docStructType);
+                    addStructure(currentMultiPageDS);
+                    addBarcodeMetadatum(barcode, currentMultiPageDS);
+                }
+            }
+        }
+        // if currentMultiPageDS is set, all current pages are meant to belong to that multi page structure, so add this one
+        if (currentMultiPageDS != null) {
+            currentMultiPageDS.addReferenceTo(dsPage, LOGICAL_PHYSICAL);
+        }
+    }
+
+    private void addStructure(DocStruct ds) throws TypeNotAllowedAsChildException {
+        if (structurePosition < 0) {
+            logical.addChild(ds);
+        } else {
+            logical.addChild(structurePosition++, ds);
+        }
+    }
+
+    private void addBarcodeMetadatum(Result barcode, DocStruct ds) throws MetadataTypeNotAllowedException {
+        if (uuidMetadata != null && !uuidMetadata.isEmpty()) {
+            Metadata md = new Metadata(prefs.getMetadataTypeByName(uuidMetadata));
+            md.setValue(barcode.getText());
+            ds.addMetadata(md);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * View of a multipage TIFF file which contains one of its images as the first and only image. The header of the file is replaced by one pointing
+ * to the directory of the image, all other bytes are read from the file at the position they are requested from. Image readers only read the
+ * directory and the strips or tiles of this image, so neither the whole file nor the images before it are read.
+ */
+class TiffFrameInputStream extends ImageInputStreamImpl {
+
+    private static final int HEADER_LENGTH = 8;
+
+    private final ImageInputStream file;
+    private final byte[] header;
+    private long bytesRead;
+    private long elapsed;
+
+    /**
+     * @param file random access stream of the whole file, it is closed with this stream
+     * @param bigEndian byte order of the file
+     * @param offset position of the directory of the image in the file
+     */
+    TiffFrameInputStream(ImageInputStream file, boolean bigEndian, long offset) {
+        this.file = file;
+        if (bigEndian) {
+            header = new byte[] { 'M', 'M', 0, 42, (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset };
+        } else {
+            header = new byte[] { 'I', 'I', 42, 0, (byte) offset, (byte) (offset >>> 8), (byte) (offset >>> 16), (byte) (offset >>> 24) };
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos < HEADER_LENGTH) {
+            return header[(int) streamPos++] & 0xFF;
+        }
+        long start = System.nanoTime();
+        file.seek(streamPos);
+        int value = file.read();
+        elapsed += System.nanoTime() - start;
+        if (value >= 0) {
+            streamPos++;
+            bytesRead++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos < HEADER_LENGTH) {
+            // the callers read again for the bytes after the header
+            int count = (int) Math.min(len, HEADER_LENGTH - streamPos);
+            System.arraycopy(header, (int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+        long start = System.nanoTime();
+        file.seek(streamPos);
+        int count = file.read(b, off, len);
+        elapsed += System.nanoTime() - start;
+        if (count > 0) {
+            streamPos += count;
+            bytesRead += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return file.length();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        file.close();
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getElapsed() {
+        return elapsed;
+    }
+}
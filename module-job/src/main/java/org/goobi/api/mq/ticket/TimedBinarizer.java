@@ -0,0 +1,70 @@
+package org.goobi.api.mq.ticket;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * Wraps a {@link HybridBinarizer} or another binarizer and measures the time spent in binarization, so it can be separated from the time spent in
+ * the actual decoding. Binarizers created for cropped or rotated parts of the image are measured as well.
+ */
+class TimedBinarizer extends Binarizer {
+
+    private final Binarizer delegate;
+
+    /**
+     * Shared by all binarizers created from this one, contains the summed up binarization time in nanoseconds
+     */
+    private final long[] elapsed;
+
+    TimedBinarizer(LuminanceSource source) {
+        this(new HybridBinarizer(source), new long[1]);
+    }
+
+    TimedBinarizer(Binarizer delegate) {
+        this(delegate, new long[1]);
+    }
+
+    private TimedBinarizer(Binarizer delegate, long[] elapsed) {
+        super(delegate.getLuminanceSource());
+        this.delegate = delegate;
+        this.elapsed = elapsed;
+    }
+
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getBlackRow(y, row);
+        } finally {
+            elapsed[0] += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getBlackMatrix();
+        } finally {
+            elapsed[0] += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new TimedBinarizer(delegate.createBinarizer(source), elapsed);
+    }
+
+    /**
+     * Returns the time spent in binarization by this binarizer and all binarizers created from it
+     *
+     * @return
+     */
+    long getElapsed() {
+        return elapsed[0];
+    }
+}
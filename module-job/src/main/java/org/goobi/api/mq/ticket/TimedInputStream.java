@@ -0,0 +1,56 @@
+package org.goobi.api.mq.ticket;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the storage and the time spent waiting for them
+ */
+class TimedInputStream extends FilterInputStream {
+
+    private long bytesRead;
+    private long elapsed;
+
+    TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int value = super.read();
+        elapsed += System.nanoTime() - start;
+        if (value >= 0) {
+            bytesRead++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int count = super.read(b, off, len);
+        elapsed += System.nanoTime() - start;
+        if (count > 0) {
+            bytesRead += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = super.skip(n);
+        elapsed += System.nanoTime() - start;
+        return skipped;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getElapsed() {
+        return elapsed;
+    }
+}
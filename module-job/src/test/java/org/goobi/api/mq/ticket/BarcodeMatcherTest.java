@@ -0,0 +1,87 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BarcodeMatcherTest {
+
+    private BarcodeMatcher matcher;
+
+    @Before
+    public void setUp() {
+        matcher = new BarcodeMatcher();
+        matcher.addPattern("\\d+", "Pattern");
+        matcher.addRange("978000", "978999", "Range");
+        matcher.addPrefix("97", "ShortPrefix");
+        matcher.addPrefix("9783", "LongPrefix");
+        matcher.addCode("978312", "Code");
+    }
+
+    @Test
+    public void testExactCodeWinsOverPrefix() {
+        assertEquals("Code", matcher.match("978312"));
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        assertEquals("LongPrefix", matcher.match("978313"));
+        assertEquals("ShortPrefix", matcher.match("971234"));
+    }
+
+    @Test
+    public void testPrefixWinsOverRange() {
+        BarcodeMatcher rangeMatcher = new BarcodeMatcher();
+        rangeMatcher.addRange("100", "199", "Range");
+        rangeMatcher.addPrefix("15", "Prefix");
+        assertEquals("Prefix", rangeMatcher.match("150"));
+        assertEquals("Range", rangeMatcher.match("160"));
+    }
+
+    @Test
+    public void testRangeWinsOverPattern() {
+        BarcodeMatcher rangeMatcher = new BarcodeMatcher();
+        rangeMatcher.addPattern("\\d+", "Pattern");
+        rangeMatcher.addRange("100", "199", "Range");
+        assertEquals("Range", rangeMatcher.match("100"));
+        assertEquals("Range", rangeMatcher.match("199"));
+        assertEquals("Pattern", rangeMatcher.match("200"));
+    }
+
+    @Test
+    public void testRangeOrdersShorterCodesFirst() {
+        BarcodeMatcher rangeMatcher = new BarcodeMatcher();
+        rangeMatcher.addRange("5", "20", "Range");
+        assertEquals("Range", rangeMatcher.match("9"));
+        assertEquals("Range", rangeMatcher.match("10"));
+        assertNull(rangeMatcher.match("100"));
+        assertNull(rangeMatcher.match("4"));
+    }
+
+    @Test
+    public void testPatternMatchesWholeCode() {
+        assertEquals("Pattern", matcher.match("123"));
+        assertNull(matcher.match("abc123"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverlappingRangeIsRejected() {
+        matcher.addRange("978500", "979100", "Overlapping");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEnclosingRangeIsRejected() {
+        matcher.addRange("977000", "980000", "Enclosing");
+    }
+
+    @Test
+    public void testAdjacentRangeIsAccepted() {
+        BarcodeMatcher rangeMatcher = new BarcodeMatcher();
+        rangeMatcher.addRange("100", "199", "First");
+        rangeMatcher.addRange("200", "299", "Second");
+        assertEquals("First", rangeMatcher.match("199"));
+        assertEquals("Second", rangeMatcher.match("200"));
+    }
+}
@@ -0,0 +1,95 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+
+public class BarcodeTicketTest {
+
+    private static final List<String> IMAGES = Arrays.asList("00000001.tif", "00000002.tif", "00000003.tif", "00000004.tif");
+
+    private final PageSource pageSource = PageSource.create("/images", IMAGES, false);
+
+    @Test
+    public void testAllPagesUnchanged() {
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, match(IMAGES, frames(0, 0, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testAddedImageInTheMiddle() {
+        List<String> pages = Arrays.asList("00000001.tif", "00000003.tif", "00000004.tif");
+        assertArrayEquals(new int[] { 0, -1, 1, 2 }, match(pages, frames(0, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testRemovedImageInTheMiddle() {
+        List<String> pages = Arrays.asList("00000001.tif", "00000001a.tif", "00000002.tif", "00000003.tif", "00000004.tif");
+        assertArrayEquals(new int[] { 0, 2, 3, 4 }, match(pages, frames(0, 0, 0, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testChangedImageKeepsFollowingPages() {
+        assertArrayEquals(new int[] { 0, -1, 2, 3 }, match(IMAGES, frames(0, 0, 0, 0), index -> index != 1));
+    }
+
+    @Test
+    public void testMovedPageKeepsLongestSequence() {
+        List<String> pages = Arrays.asList("00000004.tif", "00000001.tif", "00000002.tif", "00000003.tif");
+        assertArrayEquals(new int[] { 1, 2, 3, -1 }, match(pages, frames(0, 0, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testDuplicatePageIsKeptOnce() {
+        List<String> pages = Arrays.asList("00000001.tif", "00000002.tif", "00000002.tif", "00000003.tif", "00000004.tif");
+        assertArrayEquals(new int[] { 0, 2, 3, 4 }, match(pages, frames(0, 0, 0, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testPageWithoutFile() {
+        List<String> locations = locations(IMAGES);
+        locations.set(0, null);
+        assertArrayEquals(new int[] { -1, 1, 2, 3 },
+                BarcodeTicket.matchExistingPages(IMAGES, locations, frames(0, 0, 0, 0), pageSource, index -> true));
+    }
+
+    @Test
+    public void testFileNameMustMatchCompletely() {
+        List<String> locations = locations(IMAGES);
+        locations.set(2, "file:///images/x00000003.tif");
+        assertArrayEquals(new int[] { 0, 1, -1, 3 },
+                BarcodeTicket.matchExistingPages(IMAGES, locations, frames(0, 0, 0, 0), pageSource, index -> true));
+    }
+
+    @Test
+    public void testFrameNumberChanged() {
+        // the page refers to an image of a multipage file, which is now read as single image file
+        assertArrayEquals(new int[] { 0, -1, 2, 3 }, match(IMAGES, frames(0, 2, 0, 0), index -> true));
+    }
+
+    @Test
+    public void testNoPages() {
+        assertArrayEquals(new int[] { -1, -1, -1, -1 },
+                BarcodeTicket.matchExistingPages(IMAGES, Collections.emptyList(), Collections.emptyList(), pageSource, index -> true));
+    }
+
+    private int[] match(List<String> pages, List<Integer> frameNumbers, IntPredicate unchanged) {
+        return BarcodeTicket.matchExistingPages(IMAGES, locations(pages), frameNumbers, pageSource, unchanged);
+    }
+
+    private static List<String> locations(List<String> fileNames) {
+        String[] locations = new String[fileNames.size()];
+        for (int index = 0; index < locations.length; index++) {
+            locations[index] = "file:///images/" + fileNames.get(index);
+        }
+        return Arrays.asList(locations);
+    }
+
+    private static List<Integer> frames(Integer... frameNumbers) {
+        return Arrays.asList(frameNumbers);
+    }
+}
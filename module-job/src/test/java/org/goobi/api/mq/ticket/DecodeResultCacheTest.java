@@ -0,0 +1,143 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+public class DecodeResultCacheTest {
+
+    private static final String SETTINGS = "reader=multi";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheFile;
+
+    @Before
+    public void setUp() {
+        cacheFile = folder.getRoot().toPath().resolve(DecodeResultCache.CACHE_FILE_NAME);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.singletonList(result("123456789012", BarcodeFormat.EAN_13)));
+        cache.put("00000002.tif", 200, 2000, Collections.emptyList());
+        cache.save();
+
+        DecodeResultCache loaded = DecodeResultCache.load(cacheFile, SETTINGS);
+        List<Result> results = loaded.get("00000001.tif", 100, 1000);
+        assertEquals(1, results.size());
+        assertEquals("123456789012", results.get(0).getText());
+        assertEquals(BarcodeFormat.EAN_13, results.get(0).getBarcodeFormat());
+        assertEquals(2, results.get(0).getResultPoints().length);
+        assertEquals(3f, results.get(0).getResultPoints()[1].getX(), 0f);
+        assertTrue(loaded.get("00000002.tif", 200, 2000).isEmpty());
+        assertEquals(2, DecodeResultCache.countEntries(cacheFile, Collections.singleton(SETTINGS)));
+    }
+
+    @Test
+    public void testChangedImageIsNotUsed() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.singletonList(result("A", BarcodeFormat.QR_CODE)));
+        cache.save();
+
+        DecodeResultCache loaded = DecodeResultCache.load(cacheFile, SETTINGS);
+        assertNull(loaded.get("00000001.tif", 101, 1000));
+        assertNull(loaded.get("00000001.tif", 100, 1001));
+        assertNull(loaded.get("00000003.tif", 100, 1000));
+    }
+
+    @Test
+    public void testSettingsInvalidateCache() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.singletonList(result("A", BarcodeFormat.QR_CODE)));
+        cache.put("00000002.tif", 100, 1000, Collections.singletonList(result("B", BarcodeFormat.QR_CODE)));
+        cache.save();
+
+        assertNull(DecodeResultCache.load(cacheFile, "reader=qr").get("00000001.tif", 100, 1000));
+        assertEquals(0, DecodeResultCache.countEntries(cacheFile, Collections.singleton("reader=qr")));
+        assertEquals(2, DecodeResultCache.countEntries(cacheFile, Arrays.asList("reader=qr", SETTINGS)));
+    }
+
+    @Test
+    public void testSettingsInvalidateCheckpoints() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.singletonList(result("A", BarcodeFormat.QR_CODE)));
+        cache.checkpoint();
+
+        assertNull(DecodeResultCache.load(cacheFile, "reader=qr").get("00000001.tif", 100, 1000));
+        assertEquals(0, DecodeResultCache.countEntries(cacheFile, Collections.singleton("reader=qr")));
+        assertEquals(1, DecodeResultCache.countEntries(cacheFile, Collections.singleton(SETTINGS)));
+    }
+
+    @Test
+    public void testCheckpointsAreReadAndMerged() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.singletonList(result("A", BarcodeFormat.QR_CODE)));
+        cache.checkpoint();
+        cache.put("00000002.tif", 200, 2000, Collections.singletonList(result("B", BarcodeFormat.QR_CODE)));
+        cache.checkpoint();
+        // nothing added since the last checkpoint
+        cache.checkpoint();
+
+        Path firstCheckpoint = cacheFile.resolveSibling(DecodeResultCache.CACHE_FILE_NAME + ".checkpoint1");
+        Path secondCheckpoint = cacheFile.resolveSibling(DecodeResultCache.CACHE_FILE_NAME + ".checkpoint2");
+        assertFalse(Files.exists(cacheFile));
+        assertTrue(Files.exists(firstCheckpoint));
+        assertTrue(Files.exists(secondCheckpoint));
+        assertFalse(Files.exists(cacheFile.resolveSibling(DecodeResultCache.CACHE_FILE_NAME + ".checkpoint3")));
+        assertEquals(2, DecodeResultCache.countEntries(cacheFile, Collections.singleton(SETTINGS)));
+
+        // an interrupted run continues with the checkpoints
+        DecodeResultCache resumed = DecodeResultCache.load(cacheFile, SETTINGS);
+        assertNotNull(resumed.get("00000001.tif", 100, 1000));
+        assertEquals("B", resumed.get("00000002.tif", 200, 2000).get(0).getText());
+        resumed.put("00000003.tif", 300, 3000, Collections.emptyList());
+        resumed.save();
+
+        assertFalse(Files.exists(firstCheckpoint));
+        assertFalse(Files.exists(secondCheckpoint));
+        DecodeResultCache saved = DecodeResultCache.load(cacheFile, SETTINGS);
+        assertNotNull(saved.get("00000001.tif", 100, 1000));
+        assertNotNull(saved.get("00000002.tif", 200, 2000));
+        assertNotNull(saved.get("00000003.tif", 300, 3000));
+    }
+
+    @Test
+    public void testUnrequestedEntriesAreDropped() throws Exception {
+        DecodeResultCache cache = DecodeResultCache.load(cacheFile, SETTINGS);
+        cache.put("00000001.tif", 100, 1000, Collections.emptyList());
+        cache.put("00000002.tif", 200, 2000, Collections.emptyList());
+        cache.save();
+
+        DecodeResultCache loaded = DecodeResultCache.load(cacheFile, SETTINGS);
+        assertNotNull(loaded.get("00000002.tif", 200, 2000));
+        loaded.save();
+
+        DecodeResultCache saved = DecodeResultCache.load(cacheFile, SETTINGS);
+        assertNull(saved.get("00000001.tif", 100, 1000));
+        assertNotNull(saved.get("00000002.tif", 200, 2000));
+    }
+
+    private static Result result(String text, BarcodeFormat format) {
+        return new Result(text, null, new ResultPoint[] { new ResultPoint(1, 2), new ResultPoint(3, 4) }, format);
+    }
+}
@@ -0,0 +1,46 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.goobi.api.mq.ticket.PageSampler.Mode;
+import org.junit.Test;
+
+public class PageSamplerTest {
+
+    private static final List<String> IMAGES = Arrays.asList("a_0001.tif", "a_0002.tif", "a_0003.tif", "b_0001.tif", "b_0002.tif", "c_0001.tif");
+
+    @Test
+    public void testInterval() {
+        assertEquals(Arrays.asList(1, 4), sampled(new PageSampler(Mode.INTERVAL, 3, 1, null)));
+    }
+
+    @Test
+    public void testRecto() {
+        assertEquals(Arrays.asList(0, 2, 4), sampled(new PageSampler(Mode.RECTO, 0, 0, null)));
+    }
+
+    @Test
+    public void testGroupStart() {
+        assertEquals(Arrays.asList(0, 3, 5), sampled(new PageSampler(Mode.GROUP_START, 0, 0, Pattern.compile("^(.*?)[_-]?\\d+\\.\\w+$"))));
+    }
+
+    @Test
+    public void testPattern() {
+        assertEquals(Arrays.asList(0, 3, 5), sampled(new PageSampler(Mode.PATTERN, 0, 0, Pattern.compile("_0001"))));
+    }
+
+    private static List<Integer> sampled(PageSampler sampler) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int index = 0; index < IMAGES.size(); index++) {
+            if (sampler.isSampled(IMAGES, index)) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+}
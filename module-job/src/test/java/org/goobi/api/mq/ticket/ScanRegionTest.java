@@ -0,0 +1,42 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+public class ScanRegionTest {
+
+    @Test
+    public void testToPixels() {
+        assertEquals(new Rectangle(0, 0, 1000, 300), new ScanRegion(0, 0, 1, 0.2, null).toPixels(1000, 1500));
+        assertEquals(new Rectangle(700, 1050, 300, 450), new ScanRegion(0.7, 0.7, 0.3, 0.3, null).toPixels(1000, 1500));
+    }
+
+    @Test
+    public void testToPixelsRoundsOutwards() {
+        assertEquals(new Rectangle(33, 0, 34, 10), new ScanRegion(1d / 3, 0, 1d / 3, 1, null).toPixels(100, 10));
+    }
+
+    @Test
+    public void testToPixelsClampsToImage() {
+        assertEquals(new Rectangle(500, 0, 500, 100), new ScanRegion(0.5, -1, 2, 2, null).toPixels(1000, 100));
+    }
+
+    @Test
+    public void testToPixelsEmptyRegion() {
+        assertNull(new ScanRegion(1, 0, 0.5, 1, null).toPixels(1000, 100));
+        assertNull(new ScanRegion(0, 0, 1, 0, null).toPixels(1000, 100));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(new ScanRegion(0, 0, 1, 1, null).matches("Monograph"));
+        assertTrue(new ScanRegion(0, 0, 1, 1, "Monograph").matches("Monograph"));
+        assertFalse(new ScanRegion(0, 0, 1, 1, "Monograph").matches("Periodical"));
+    }
+}
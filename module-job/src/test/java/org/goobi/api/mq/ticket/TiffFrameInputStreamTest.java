@@ -0,0 +1,141 @@
+package org.goobi.api.mq.ticket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TiffFrameInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBigEndianFrames() throws Exception {
+        testFrames(ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void testLittleEndianFrames() throws Exception {
+        testFrames(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testSingleImageFile() throws Exception {
+        writeTiff("single.tif", ByteOrder.BIG_ENDIAN, false, 30);
+        PageSource source = PageSource.create(folder.getRoot().getPath(), Collections.singletonList("single.tif"), true);
+        assertEquals(Collections.singletonList("single.tif"), source.getPageNames());
+        assertFalse(source.hasFrames());
+        assertEquals(0, source.getFrameNumber("single.tif"));
+    }
+
+    @Test
+    public void testMultipageFilesDisabled() throws Exception {
+        writeTiff("volume.tif", ByteOrder.BIG_ENDIAN, false, 30, 40);
+        PageSource source = PageSource.create(folder.getRoot().getPath(), Collections.singletonList("volume.tif"), false);
+        assertEquals(Collections.singletonList("volume.tif"), source.getPageNames());
+    }
+
+    @Test
+    public void testBigTiffIsNotSplit() throws Exception {
+        // BigTIFF header: byte order, magic 43, offset size 8, first directory at offset 16
+        byte[] header = { 'M', 'M', 0, 43, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 16 };
+        Files.write(new File(folder.getRoot(), "big.tif").toPath(), header);
+        PageSource source = PageSource.create(folder.getRoot().getPath(), Collections.singletonList("big.tif"), true);
+        assertEquals(Collections.singletonList("big.tif"), source.getPageNames());
+        assertFalse(source.hasFrames());
+    }
+
+    private void testFrames(ByteOrder byteOrder) throws Exception {
+        // the thumbnail after the second image is not a page of its own
+        writeTiff("volume.tif", byteOrder, true, 30, 40, 50);
+        PageSource source = PageSource.create(folder.getRoot().getPath(), Arrays.asList("cover.jpg", "volume.tif"), true);
+        assertEquals(Arrays.asList("cover.jpg", "volume.tif#1", "volume.tif#2", "volume.tif#3"), source.getPageNames());
+        assertTrue(source.hasFrames());
+        assertFalse(source.isFrame("cover.jpg"));
+        for (int number = 1; number <= 3; number++) {
+            String pageName = "volume.tif" + PageSource.FRAME_SEPARATOR + number;
+            assertTrue(source.isFrame(pageName));
+            assertEquals("volume.tif", source.getFileName(pageName));
+            assertEquals(number, source.getFrameNumber(pageName));
+            try (ImageInputStream frame = source.getOpener(pageName).openImage()) {
+                ImageReader reader = ImageIO.getImageReaders(frame).next();
+                reader.setInput(frame, false, true);
+                BufferedImage image = reader.read(0);
+                reader.dispose();
+                int width = 20 + 10 * number;
+                assertEquals(width, image.getWidth());
+                assertEquals(2 * width, image.getHeight());
+                assertEquals(width, image.getRaster().getSample(0, 0, 0));
+                assertTrue(((TiffFrameInputStream) frame).getBytesRead() > 0);
+            }
+        }
+        source.close();
+    }
+
+    /**
+     * Writes a TIFF file with a gray image for each width, its pixels have the value of the width
+     */
+    private void writeTiff(String fileName, ByteOrder byteOrder, boolean thumbnail, int... widths) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        File file = new File(folder.getRoot(), fileName);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            out.setByteOrder(byteOrder);
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            for (int index = 0; index < widths.length; index++) {
+                writer.writeToSequence(new IIOImage(image(widths[index], 2 * widths[index]), null, null), null);
+                if (thumbnail && index == 1) {
+                    writer.writeToSequence(new IIOImage(image(5, 10), null, reducedResolution(writer)), null);
+                }
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static IIOMetadata reducedResolution(ImageWriter writer) throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image(5, 10)), param);
+        TIFFDirectory directory = TIFFDirectory.createFromMetadata(metadata);
+        TIFFTag tag = BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE);
+        directory.addTIFFField(new TIFFField(tag, TIFFTag.TIFF_LONG, 1, new long[] { BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION }));
+        return directory.getAsMetadata();
+    }
+
+    private static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.getRaster().setSample(x, y, 0, width);
+            }
+        }
+        return image;
+    }
+}